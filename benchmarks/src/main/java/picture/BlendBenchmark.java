@@ -0,0 +1,57 @@
+package picture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of blending 2, 8 and 64 inputs. At most DISTINCT_INPUTS different pictures are
+ * generated and repeated to make up the inputs, so that 64 inputs of 50 MP still fit in the heap.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx16g")
+@State(Scope.Benchmark)
+public class BlendBenchmark {
+
+  private static final int DISTINCT_INPUTS = 8;
+
+  @Param({SyntheticPictures.ICON, SyntheticPictures.ONE_MP,
+      SyntheticPictures.TWELVE_MP, SyntheticPictures.FIFTY_MP})
+  public String size;
+
+  @Param({"2", "8", "64"})
+  public int inputs;
+
+  private List<Picture> pictures;
+
+  @Setup
+  public void setUp() {
+    List<Picture> distinct = new ArrayList<>();
+    for (int i = 0; i < Math.min(inputs, DISTINCT_INPUTS); i++) {
+      distinct.add(SyntheticPictures.random(size, i));
+    }
+    pictures = new ArrayList<>();
+    for (int i = 0; i < inputs; i++) {
+      pictures.add(distinct.get(i % distinct.size()));
+    }
+  }
+
+  @Benchmark
+  public Picture blend() {
+    return Picture.blend(pictures);
+  }
+}
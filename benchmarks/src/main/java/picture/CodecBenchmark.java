@@ -0,0 +1,89 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of PNG decoding in the Picture(String) constructor and of encoding by PictureIO at
+ * several deflate levels, against ImageIO's own PNG writer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx16g")
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+  @Param({SyntheticPictures.ICON, SyntheticPictures.ONE_MP,
+      SyntheticPictures.TWELVE_MP, SyntheticPictures.FIFTY_MP})
+  public String size;
+
+  private Picture picture;
+  private BufferedImage image;
+  private File directory;
+  private String input;
+  private String output;
+
+  @Setup
+  public void setUp() throws IOException {
+    picture = SyntheticPictures.random(size, 1);
+    directory = Files.createTempDirectory("codec-benchmark").toFile();
+    input = new File(directory, "in.png").getPath();
+    output = new File(directory, "out.png").getPath();
+    picture.saveAs(input);
+    image = new BufferedImage(picture.getWidth(), picture.getHeight(),
+        BufferedImage.TYPE_INT_RGB);
+    image.getRaster().setDataElements(0, 0, picture.getWidth(), picture.getHeight(),
+        picture.data());
+  }
+
+  @TearDown
+  public void tearDown() {
+    new File(input).delete();
+    new File(output).delete();
+    directory.delete();
+  }
+
+  /**
+   * The deflate level, a separate state so that only encode is run at each level.
+   */
+  @State(Scope.Benchmark)
+  public static class Deflate {
+
+    @Param({"1", "4", "9"})
+    public int level;
+  }
+
+  @Benchmark
+  public Picture decode() {
+    return new Picture(input);
+  }
+
+  @Benchmark
+  public void encode(Deflate deflate) throws IOException {
+    PictureIO.write(picture, Paths.get(output), deflate.level);
+  }
+
+  @Benchmark
+  public void encodeImageIO() throws IOException {
+    ImageIO.write(image, "png", new File(output));
+  }
+}
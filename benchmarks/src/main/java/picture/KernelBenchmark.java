@@ -0,0 +1,84 @@
+package picture;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scalar point kernels with the Vector API ones on a whole picture, for invert,
+ * grayscale and the per-row accumulate and average steps of blending 8 pictures.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class KernelBenchmark {
+
+  private static final int BLEND_INPUTS = 8;
+
+  @Param({SyntheticPictures.ONE_MP, SyntheticPictures.TWELVE_MP})
+  public String size;
+
+  @Param({"scalar", "vector"})
+  public String kernels;
+
+  private PointKernels selected;
+  private Picture picture;
+  private int[] output;
+  private int[] red;
+  private int[] green;
+  private int[] blue;
+
+  @Setup
+  public void setUp() {
+    selected = kernels.equals("scalar") ? PointKernels.scalar() : PointKernels.get();
+    if (kernels.equals("vector") && selected == PointKernels.scalar()) {
+      throw new IllegalStateException("The Vector API is not available in this JVM");
+    }
+    picture = SyntheticPictures.random(size, 1);
+    output = new int[picture.data().length];
+    red = new int[picture.getWidth()];
+    green = new int[picture.getWidth()];
+    blue = new int[picture.getWidth()];
+  }
+
+  @Benchmark
+  public int[] invert() {
+    selected.invert(picture.data(), output, 0, output.length);
+    return output;
+  }
+
+  @Benchmark
+  public int[] grayscale() {
+    selected.grayscale(picture.data(), output, 0, output.length);
+    return output;
+  }
+
+  @Benchmark
+  public int[] blend() {
+    int width = picture.getWidth();
+    int[] src = picture.data();
+    for (int row = 0; row < src.length; row += width) {
+      Arrays.fill(red, 0);
+      Arrays.fill(green, 0);
+      Arrays.fill(blue, 0);
+      for (int i = 0; i < BLEND_INPUTS; i++) {
+        selected.accumulate(src, row, red, green, blue, width);
+      }
+      selected.average(red, green, blue, BLEND_INPUTS, output, row, width);
+    }
+    return output;
+  }
+}
@@ -0,0 +1,85 @@
+package picture;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of every single-input Picture operation, plus mosaic of two inputs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx16g")
+@State(Scope.Benchmark)
+public class PictureBenchmark {
+
+  @Param({SyntheticPictures.ICON, SyntheticPictures.ONE_MP,
+      SyntheticPictures.TWELVE_MP, SyntheticPictures.FIFTY_MP})
+  public String size;
+
+  private Picture picture;
+  private List<Picture> mosaicInputs;
+
+  @Setup
+  public void setUp() {
+    picture = SyntheticPictures.random(size, 1);
+    mosaicInputs = List.of(picture, SyntheticPictures.random(size, 2));
+  }
+
+  @Benchmark
+  public Picture invert() {
+    return picture.invert();
+  }
+
+  @Benchmark
+  public Picture grayscale() {
+    return picture.grayscale();
+  }
+
+  @Benchmark
+  public Picture rotate90() {
+    return picture.rotate90();
+  }
+
+  @Benchmark
+  public Picture rotate180() {
+    return picture.rotate180();
+  }
+
+  @Benchmark
+  public Picture rotate270() {
+    return picture.rotate270();
+  }
+
+  @Benchmark
+  public Picture flipHorizontal() {
+    return picture.flipHorizontal();
+  }
+
+  @Benchmark
+  public Picture flipVertical() {
+    return picture.flipVertical();
+  }
+
+  @Benchmark
+  public Picture blur() {
+    return picture.blur();
+  }
+
+  @Benchmark
+  public Picture mosaic() {
+    return Picture.mosaic(mosaicInputs, 32);
+  }
+}
@@ -0,0 +1,81 @@
+package picture;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cache-blocked quarter-turn rotations with the row-by-row loops they replaced, on
+ * 12 MP and 50 MP pictures. Both write into a preallocated destination so that only the
+ * traversal is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class RotateBenchmark {
+
+  @Param({SyntheticPictures.TWELVE_MP, SyntheticPictures.FIFTY_MP})
+  public String size;
+
+  private Picture picture;
+  private Picture rotated;
+
+  @Setup
+  public void setUp() {
+    picture = SyntheticPictures.random(size, 1);
+    rotated = new Picture(picture.getHeight(), picture.getWidth());
+  }
+
+  @Benchmark
+  public Picture rotate90Blocked() {
+    return picture.rotate90(rotated);
+  }
+
+  @Benchmark
+  public Picture rotate90RowByRow() {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int[] src = picture.data();
+    int[] dst = rotated.data();
+    for (int y = 0; y < height; y++) {
+      int row = y * width;
+      int column = height - y - 1;
+      for (int x = 0; x < width; x++) {
+        dst[x * height + column] = src[row + x];
+      }
+    }
+    return rotated;
+  }
+
+  @Benchmark
+  public Picture rotate270Blocked() {
+    return picture.rotate270(rotated);
+  }
+
+  @Benchmark
+  public Picture rotate270RowByRow() {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int[] src = picture.data();
+    int[] dst = rotated.data();
+    for (int y = 0; y < height; y++) {
+      int row = y * width;
+      for (int x = 0; x < width; x++) {
+        dst[(width - x - 1) * height + y] = src[row + x];
+      }
+    }
+    return rotated;
+  }
+}
@@ -0,0 +1,39 @@
+package picture;
+
+import java.util.Random;
+
+/**
+ * Builds pictures of random noise for the benchmarks, so that no image files are needed.
+ */
+final class SyntheticPictures {
+
+  /**
+   * The sizes benchmarked: an icon, 1 MP, 12 MP and 50 MP.
+   */
+  static final String ICON = "64x64";
+  static final String ONE_MP = "1024x1024";
+  static final String TWELVE_MP = "4000x3000";
+  static final String FIFTY_MP = "8192x6144";
+
+  private SyntheticPictures() {
+  }
+
+  /**
+   * Returns a picture of random pixels whose size is given as WIDTHxHEIGHT.
+   */
+  static Picture random(String size, long seed) {
+    String[] parts = size.split("x");
+    int width = Integer.parseInt(parts[0]);
+    int height = Integer.parseInt(parts[1]);
+    Picture picture = new Picture(width, height);
+    Random random = new Random(seed);
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        row[x] = random.nextInt();
+      }
+      picture.setRow(y, row, 0);
+    }
+    return picture;
+  }
+}
@@ -0,0 +1,133 @@
+package picture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+
+/**
+ * A picture that is still being loaded or processed, from {@link Pictures#loadAsync(String)}.
+ * Each <tt>then</tt> method returns at once with a new AsyncPicture for the result of an
+ * operation, which runs on the CPU pool of {@link Pictures} once this one is ready, so a chain
+ * such as <tt>Pictures.loadAsync(in).thenGrayscale().thenInvert().saveAsync(out)</tt> never
+ * blocks its caller.
+ *
+ * <p>Cancelling any stage of a chain cancels the whole chain. A stage that has not started is
+ * skipped, and a stage that is running stops at its next band of rows.
+ */
+public final class AsyncPicture {
+
+  private final CompletableFuture<Picture> future;
+  private final AtomicBoolean cancelled;
+
+  AsyncPicture(CompletableFuture<Picture> future, AtomicBoolean cancelled) {
+    this.future = future;
+    this.cancelled = cancelled;
+  }
+
+  /**
+   * Returns the result of operation applied to this picture, once it is ready. The operation
+   * runs on the CPU pool and must not modify its input.
+   */
+  public AsyncPicture then(UnaryOperator<Picture> operation) {
+    CompletableFuture<Picture> next = new CompletableFuture<>();
+    future.whenComplete((picture, failure) -> {
+      if (failure != null) {
+        next.completeExceptionally(failure);
+      } else {
+        Pictures.submit(Pictures.cpu(), next, cancelled, () -> operation.apply(picture));
+      }
+    });
+    return new AsyncPicture(next, cancelled);
+  }
+
+  public AsyncPicture thenInvert() {
+    return then(Picture::invert);
+  }
+
+  public AsyncPicture thenGrayscale() {
+    return then(Picture::grayscale);
+  }
+
+  public AsyncPicture thenRotate90() {
+    return then(Picture::rotate90);
+  }
+
+  public AsyncPicture thenRotate180() {
+    return then(Picture::rotate180);
+  }
+
+  public AsyncPicture thenRotate270() {
+    return then(Picture::rotate270);
+  }
+
+  public AsyncPicture thenFlipHorizontal() {
+    return then(Picture::flipHorizontal);
+  }
+
+  public AsyncPicture thenFlipVertical() {
+    return then(Picture::flipVertical);
+  }
+
+  public AsyncPicture thenBlur(int radius, BorderMode border) {
+    return then(picture -> picture.blur(radius, border));
+  }
+
+  public AsyncPicture thenResize(int width, int height, ResizeFilter filter) {
+    return then(picture -> picture.resize(width, height, filter));
+  }
+
+  /**
+   * Returns the result of every operation of pipeline, fused as by {@link Pipeline#apply}.
+   */
+  public AsyncPicture thenApply(Pipeline pipeline) {
+    return then(pipeline::apply);
+  }
+
+  /**
+   * Encode this picture as PNG on the CPU pool once it is ready, then write it to filepath on the
+   * I/O pool.
+   *
+   * @return a future that completes once the file is written.
+   */
+  public CompletableFuture<Void> saveAsync(String filepath) {
+    CompletableFuture<byte[]> encoded = new CompletableFuture<>();
+    future.whenComplete((picture, failure) -> {
+      if (failure != null) {
+        encoded.completeExceptionally(failure);
+      } else {
+        Pictures.submit(Pictures.cpu(), encoded, cancelled, () -> {
+          try {
+            return PictureIO.toBytes(picture, PictureIO.getDefaultLevel());
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+    });
+    return encoded.thenCompose(bytes -> Pictures.write(bytes, Paths.get(filepath), cancelled));
+  }
+
+  /**
+   * Cancel the chain this picture belongs to.
+   *
+   * @return false if this picture was already complete.
+   */
+  public boolean cancel() {
+    cancelled.set(true);
+    return future.cancel(false);
+  }
+
+  public boolean isDone() {
+    return future.isDone();
+  }
+
+  /**
+   * Returns a future of the picture, for composing with other asynchronous work.
+   */
+  public CompletableFuture<Picture> toCompletableFuture() {
+    return future;
+  }
+}
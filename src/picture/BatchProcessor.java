@@ -0,0 +1,220 @@
+package picture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Applies a {@link Pipeline} to many image files. Each file goes through three stages, each with
+ * its own thread pool: decode, compute and encode. Disk I/O and PNG codec work for some files
+ * therefore overlap with pixel processing for others. At most a fixed number of files are in
+ * flight between their decode and the end of their encode, so memory stays bounded however many
+ * files there are. A file that fails is recorded in the result and does not stop the batch.
+ */
+public class BatchProcessor {
+
+  /**
+   * The files in flight by default, two per core.
+   */
+  static final int DEFAULT_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+  private final Pipeline pipeline;
+  private final int decodeThreads;
+  private final int computeThreads;
+  private final int encodeThreads;
+  private final int maxInFlight;
+
+  /**
+   * Construct a batch processor with a thread count for each stage.
+   *
+   * @param pipeline       the operations applied to every file.
+   * @param decodeThreads  the number of threads decoding input files.
+   * @param computeThreads the number of threads applying the pipeline.
+   * @param encodeThreads  the number of threads encoding output files.
+   * @param maxInFlight    the most files that are decoded but not yet written at any time.
+   * @throws IllegalArgumentException if any count is less than 1.
+   */
+  public BatchProcessor(Pipeline pipeline, int decodeThreads, int computeThreads,
+      int encodeThreads, int maxInFlight) {
+    if (decodeThreads < 1 || computeThreads < 1 || encodeThreads < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("Thread counts and maxInFlight must be at least 1");
+    }
+    this.pipeline = pipeline;
+    this.decodeThreads = decodeThreads;
+    this.computeThreads = computeThreads;
+    this.encodeThreads = encodeThreads;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Construct a batch processor that uses every core for compute, two threads each for decoding
+   * and encoding, and keeps up to two files per compute thread in flight.
+   */
+  public BatchProcessor(Pipeline pipeline) {
+    this(pipeline, DEFAULT_IN_FLIGHT);
+  }
+
+  /**
+   * Construct a batch processor like {@link #BatchProcessor(Pipeline)}, but with at most
+   * maxInFlight files in flight.
+   */
+  public BatchProcessor(Pipeline pipeline, int maxInFlight) {
+    this(pipeline, 2, Runtime.getRuntime().availableProcessors(), 2, maxInFlight);
+  }
+
+  /**
+   * Returns the files matched by input, in name order. Input is either a directory, in which case
+   * every regular file in it matches, or a glob on file names such as <tt>frames/*.png</tt>.
+   */
+  public static List<Path> expand(String input) {
+    Path path = Paths.get(input);
+    Path directory;
+    PathMatcher matcher;
+    if (Files.isDirectory(path)) {
+      directory = path;
+      matcher = file -> true;
+    } else {
+      directory = path.getParent() == null ? Paths.get(".") : path.getParent();
+      matcher = FileSystems.getDefault().getPathMatcher("glob:" + path.getFileName());
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(Files::isRegularFile)
+          .filter(file -> matcher.matches(file.getFileName()))
+          .sorted()
+          .toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Process every input, writing each output under the same file name in outputDirectory. Blocks
+   * until every file has either been written or failed.
+   *
+   * @param inputs          the files to process.
+   * @param outputDirectory the directory the outputs are written to, created if needed.
+   * @return a summary of the batch, including every failure.
+   */
+  public Result run(List<Path> inputs, Path outputDirectory) {
+    try {
+      Files.createDirectories(outputDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    ExecutorService decoders = newPool(decodeThreads);
+    ExecutorService computers = newPool(computeThreads);
+    ExecutorService encoders = newPool(encodeThreads);
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    CountDownLatch done = new CountDownLatch(inputs.size());
+    List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger written = new AtomicInteger();
+    AtomicLong pixels = new AtomicLong();
+    long start = System.nanoTime();
+    try {
+      for (Path input : inputs) {
+        // Blocks here once maxInFlight files are between decode and encode
+        inFlight.acquireUninterruptibly();
+        Path output = outputDirectory.resolve(input.getFileName());
+        Job job = new Job(input, output, inFlight, done, failures);
+        decoders.execute(job.stage(() -> {
+          Picture decoded = new Picture(input.toString());
+          computers.execute(job.stage(() -> {
+            Picture processed = pipeline.apply(decoded);
+            encoders.execute(job.stage(() -> {
+              processed.saveAs(output.toString());
+              written.incrementAndGet();
+              pixels.addAndGet((long) decoded.getWidth() * decoded.getHeight());
+              job.finish();
+            }));
+          }));
+        }));
+      }
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      decoders.shutdownNow();
+      computers.shutdownNow();
+      encoders.shutdownNow();
+    }
+    long elapsed = System.nanoTime() - start;
+    List<Failure> failed = List.copyOf(failures);
+    // Counted rather than inferred, since an interrupted batch leaves some files unprocessed
+    return new Result(written.get(), failed, pixels.get(), elapsed);
+  }
+
+  /**
+   * A fixed size pool whose queue can hold every permitted file, so that execute never rejects.
+   */
+  private ExecutorService newPool(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(maxInFlight));
+  }
+
+  /**
+   * The state of one file as it passes through the stages.
+   */
+  private record Job(Path input, Path output, Semaphore inFlight, CountDownLatch done,
+      List<Failure> failures) {
+
+    Runnable stage(Runnable body) {
+      return () -> {
+        try {
+          body.run();
+        } catch (RuntimeException | Error e) {
+          failures.add(new Failure(input, e));
+          finish();
+        }
+      };
+    }
+
+    void finish() {
+      inFlight.release();
+      done.countDown();
+    }
+  }
+
+  /**
+   * A file that could not be processed and the reason why.
+   */
+  public record Failure(Path input, Throwable cause) {
+  }
+
+  /**
+   * The outcome of a batch.
+   *
+   * @param succeeded   the number of files written.
+   * @param failures    every file that failed.
+   * @param pixels      the total number of input pixels processed.
+   * @param elapsedNanos the wall-clock time taken by the whole batch.
+   */
+  public record Result(int succeeded, List<Failure> failures, long pixels, long elapsedNanos) {
+
+    /**
+     * Returns a human readable summary of the throughput of the batch.
+     */
+    public String summary() {
+      double seconds = elapsedNanos / 1e9;
+      int total = succeeded + failures.size();
+      return String.format("Processed %d of %d files in %.2f s (%.2f files/s, %.2f MP/s)",
+          succeeded, total, seconds, succeeded / seconds, pixels / 1e6 / seconds);
+    }
+  }
+}
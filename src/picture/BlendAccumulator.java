@@ -0,0 +1,125 @@
+package picture;
+
+/**
+ * Accumulates weighted per-channel totals of pictures one at a time, so that a blend of many
+ * pictures only ever needs one of them in memory alongside the totals. With every weight equal to
+ * 1 the result is the same as {@link Picture#blend(java.util.List)}.
+ */
+public class BlendAccumulator {
+
+  /**
+   * The largest total weight whose channel totals are guaranteed to fit in an int.
+   */
+  private static final int MAX_TOTAL_WEIGHT = Integer.MAX_VALUE / 255;
+
+  private final int width;
+  private final int height;
+  private final int[] totalRed;
+  private final int[] totalGreen;
+  private final int[] totalBlue;
+  private int totalWeight;
+
+  /**
+   * Construct an empty accumulator for a blend that is width by height pixels. Pictures added to
+   * it are cropped to those dimensions.
+   */
+  public BlendAccumulator(int width, int height) {
+    this.width = width;
+    this.height = height;
+    totalRed = new int[width * height];
+    totalGreen = new int[width * height];
+    totalBlue = new int[width * height];
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Add the top-left width by height pixels of picture to the blend with the given weight.
+   *
+   * @param picture the picture to add, at least as large as this accumulator.
+   * @param weight  how many times picture counts towards the average.
+   * @throws IllegalArgumentException if picture is too small or weight is negative.
+   * @throws ArithmeticException      if the total weight grows too large to accumulate.
+   */
+  public void add(Picture picture, int weight) {
+    checkPicture(picture, weight);
+    if (weight > MAX_TOTAL_WEIGHT - totalWeight) {
+      throw new ArithmeticException("Total weight of blend is too large");
+    }
+    totalWeight += weight;
+    accumulate(picture, weight);
+  }
+
+  /**
+   * Take back a picture that was earlier added with the same weight, so that a sliding window of
+   * pictures can be blended by adding each new picture and removing the oldest.
+   *
+   * @param picture the picture to remove, with the same pixels as when it was added.
+   * @param weight  the weight picture was added with.
+   * @throws IllegalArgumentException if picture is too small, or weight is negative or more than
+   *                                  the total weight added.
+   */
+  public void remove(Picture picture, int weight) {
+    checkPicture(picture, weight);
+    if (weight > totalWeight) {
+      throw new IllegalArgumentException("Weight " + weight + " is more than the total "
+          + totalWeight);
+    }
+    totalWeight -= weight;
+    accumulate(picture, -weight);
+  }
+
+  private void checkPicture(Picture picture, int weight) {
+    if (picture.getWidth() < width || picture.getHeight() < height) {
+      throw new IllegalArgumentException("Picture is smaller than the blend: "
+          + picture.getWidth() + "x" + picture.getHeight());
+    }
+    if (weight < 0) {
+      throw new IllegalArgumentException("Weight must not be negative: " + weight);
+    }
+  }
+
+  private void accumulate(Picture picture, int weight) {
+    int[] src = picture.dataForReading();
+    int srcWidth = picture.getWidth();
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      for (int y = fromRow; y < toRow; y++) {
+        int row = y * width;
+        int srcRow = y * srcWidth;
+        for (int x = 0; x < width; x++) {
+          int rgb = src[srcRow + x];
+          totalRed[row + x] += weight * Picture.red(rgb);
+          totalGreen[row + x] += weight * Picture.green(rgb);
+          totalBlue[row + x] += weight * Picture.blue(rgb);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the weighted average of every picture added so far, each channel rounded down.
+   *
+   * @throws IllegalStateException if nothing with a positive weight has been added.
+   */
+  public Picture result() {
+    if (totalWeight == 0) {
+      throw new IllegalStateException("Nothing has been added to the blend");
+    }
+    Picture out = new Picture(width, height);
+    int[] dst = out.data();
+    int divisor = totalWeight;
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      for (int i = fromRow * width; i < toRow * width; i++) {
+        dst[i] = Picture.pack(totalRed[i] / divisor,
+            totalGreen[i] / divisor, totalBlue[i] / divisor);
+      }
+    });
+    return out;
+  }
+}
@@ -0,0 +1,167 @@
+package picture;
+
+/**
+ * Box and Gaussian blurs over packed 0xRRGGBB pixel arrays. A box blur is done as a horizontal
+ * then a vertical pass, each keeping a running sum over its window, so the cost per pixel does not
+ * depend on the radius. The Gaussian blur is approximated by three successive box blurs.
+ */
+final class Blur {
+
+  private static final int GAUSSIAN_PASSES = 3;
+
+  /**
+   * The largest radius whose window total, (2 * radius + 1)^2 * 255, fits in an int with half the
+   * window area added to round it.
+   */
+  static final int MAX_RADIUS = 1449;
+
+  private Blur() {
+  }
+
+  /**
+   * Blur src into dst by averaging each pixel with all pixels at most radius away from it in both
+   * directions. The average is the channel total divided by (2 * radius + 1)^2, rounded down.
+   */
+  static void box(int[] src, int[] dst, int width, int height, int radius, BorderMode border) {
+    checkRadius(radius);
+    boxPass(src, dst, width, height, radius, border, false);
+    if (border == BorderMode.KEEP) {
+      keepBorder(src, dst, width, height, radius);
+    }
+  }
+
+  /**
+   * Blur src into dst with an approximate Gaussian of standard deviation sigma.
+   */
+  static void gaussian(int[] src, int[] dst, int width, int height, double sigma,
+      BorderMode border) {
+    if (!(sigma > 0)) {
+      throw new IllegalArgumentException("Sigma must be positive: " + sigma);
+    }
+    int[] radii = gaussianRadii(sigma);
+    if (radii[radii.length - 1] > MAX_RADIUS) {
+      throw new IllegalArgumentException("Sigma is too large: " + sigma);
+    }
+    // Passes alternate between dst and one intermediate, so that the last lands in dst
+    int[] spare = radii.length > 1 ? new int[src.length] : null;
+    int[] current = src;
+    int margin = 0;
+    for (int i = 0; i < radii.length; i++) {
+      int[] next = (radii.length - 1 - i) % 2 == 0 ? dst : spare;
+      boxPass(current, next, width, height, radii[i], border, true);
+      current = next;
+      margin += radii[i];
+    }
+    if (border == BorderMode.KEEP) {
+      keepBorder(src, dst, width, height, margin);
+    }
+  }
+
+  /**
+   * Returns the radii of the box blurs whose repeated application best approximates a Gaussian of
+   * standard deviation sigma.
+   */
+  static int[] gaussianRadii(double sigma) {
+    int n = GAUSSIAN_PASSES;
+    double idealWidth = Math.sqrt(12 * sigma * sigma / n + 1);
+    int lower = (int) Math.floor(idealWidth);
+    if (lower % 2 == 0) {
+      lower--;
+    }
+    int upper = lower + 2;
+    // The number of passes that use the lower width
+    double idealLower = (12 * sigma * sigma - n * lower * lower - 4 * n * lower - 3 * n)
+        / (-4.0 * lower - 4);
+    long numLower = Math.round(idealLower);
+    int[] radii = new int[n];
+    for (int i = 0; i < n; i++) {
+      radii[i] = ((i < numLower ? lower : upper) - 1) / 2;
+    }
+    return radii;
+  }
+
+  static void checkRadius(int radius) {
+    if (radius < 0 || radius > MAX_RADIUS) {
+      throw new IllegalArgumentException(
+          "Radius must be between 0 and " + MAX_RADIUS + ": " + radius);
+    }
+  }
+
+  private static void boxPass(int[] src, int[] dst, int width, int height, int radius,
+      BorderMode border, boolean round) {
+    if (radius == 0) {
+      System.arraycopy(src, 0, dst, 0, src.length);
+      return;
+    }
+    int window = 2 * radius + 1;
+    int area = window * window;
+    int bias = round ? area / 2 : 0;
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      // Totals over the whole window of every column of the current row, kept by adding the
+      // horizontal window totals of the row entering it and taking those of the row leaving
+      int[] red = new int[width];
+      int[] green = new int[width];
+      int[] blue = new int[width];
+      for (int dy = -radius; dy <= radius; dy++) {
+        int row = border.remap(fromRow + dy, height) * width;
+        horizontal(src, row, red, green, blue, width, radius, border, 1);
+      }
+      for (int y = fromRow; y < toRow; y++) {
+        int row = y * width;
+        for (int x = 0; x < width; x++) {
+          dst[row + x] = Picture.pack((red[x] + bias) / area,
+              (green[x] + bias) / area, (blue[x] + bias) / area);
+        }
+        if (y + 1 < toRow) {
+          int added = border.remap(y + radius + 1, height) * width;
+          int removed = border.remap(y - radius, height) * width;
+          horizontal(src, added, red, green, blue, width, radius, border, 1);
+          horizontal(src, removed, red, green, blue, width, radius, border, -1);
+        }
+      }
+    });
+  }
+
+  /**
+   * Add sign times the horizontal window total of each pixel of the row of src starting at row
+   * to the totals of its column.
+   */
+  private static void horizontal(int[] src, int row, int[] totalRed, int[] totalGreen,
+      int[] totalBlue, int width, int radius, BorderMode border, int sign) {
+    int red = 0;
+    int green = 0;
+    int blue = 0;
+    for (int dx = -radius; dx <= radius; dx++) {
+      int rgb = src[row + border.remap(dx, width)];
+      red += Picture.red(rgb);
+      green += Picture.green(rgb);
+      blue += Picture.blue(rgb);
+    }
+    for (int x = 0; x < width; x++) {
+      totalRed[x] += sign * red;
+      totalGreen[x] += sign * green;
+      totalBlue[x] += sign * blue;
+      int added = src[row + border.remap(x + radius + 1, width)];
+      int removed = src[row + border.remap(x - radius, width)];
+      red += Picture.red(added) - Picture.red(removed);
+      green += Picture.green(added) - Picture.green(removed);
+      blue += Picture.blue(added) - Picture.blue(removed);
+    }
+  }
+
+  /**
+   * Copy back from src every pixel of dst that lies within margin of the edge.
+   */
+  private static void keepBorder(int[] src, int[] dst, int width, int height, int margin) {
+    for (int y = 0; y < height; y++) {
+      int row = y * width;
+      if (y < margin || y >= height - margin) {
+        System.arraycopy(src, row, dst, row, width);
+      } else {
+        int edge = Math.min(margin, width);
+        System.arraycopy(src, row, dst, row, edge);
+        System.arraycopy(src, row + width - edge, dst, row + width - edge, edge);
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package picture;
+
+/**
+ * How neighbourhood operations such as blur treat pixels whose neighbourhood reaches past the edge
+ * of the picture.
+ */
+public enum BorderMode {
+
+  /**
+   * Pixels whose neighbourhood does not fit inside the picture are left unchanged.
+   */
+  KEEP,
+
+  /**
+   * Coordinates outside the picture take the value of the nearest edge pixel.
+   */
+  CLAMP,
+
+  /**
+   * Coordinates outside the picture are reflected about the edge pixel, so -1 reads 1.
+   */
+  MIRROR,
+
+  /**
+   * Coordinates outside the picture wrap around to the opposite edge.
+   */
+  WRAP;
+
+  /**
+   * Map the coordinate i onto [0, size). KEEP is treated as CLAMP, since callers restore the kept
+   * border themselves.
+   */
+  int remap(int i, int size) {
+    if (i >= 0 && i < size) {
+      return i;
+    }
+    switch (this) {
+      case WRAP -> {
+        return Math.floorMod(i, size);
+      }
+      case MIRROR -> {
+        if (size == 1) {
+          return 0;
+        }
+        int period = 2 * (size - 1);
+        int j = Math.floorMod(i, period);
+        return j < size ? j : period - j;
+      }
+      default -> {
+        return i < 0 ? 0 : size - 1;
+      }
+    }
+  }
+}
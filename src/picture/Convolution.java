@@ -0,0 +1,298 @@
+package picture;
+
+/**
+ * Convolves packed 0xRRGGBB pixel arrays with a {@link Kernel}, choosing the cheapest method the
+ * kernel allows. A box kernel, whose weights are all equal, reads each window total from a
+ * summed-area table in four lookups, whatever its size. A separable kernel, whose rows are all
+ * multiples of one row, is applied as a horizontal then a vertical 1D pass. Any other kernel is
+ * applied directly, skipping zero weights.
+ *
+ * <p>The output rows are split into bands that run in parallel. Each band reads the halo of input
+ * rows it needs above and below itself and builds its own tables, so bands never wait on each
+ * other. Within a band rows are done in chunks, so the tables stay small however large the
+ * picture.
+ */
+final class Convolution {
+
+  /**
+   * The fewest output rows done per chunk.
+   */
+  private static final int MIN_CHUNK_ROWS = 64;
+
+  private Convolution() {
+  }
+
+  /**
+   * Convolve src with kernel into dst.
+   */
+  static void convolve(int[] src, int[] dst, int width, int height, Kernel kernel,
+      BorderMode border) {
+    double[][] separated = kernel.separate();
+    // A box read from a file may be too large for the summed-area tables to hold its totals
+    boolean smallBox = kernel.isBox()
+        && (long) kernel.getWidth() * kernel.getHeight() * 255 < 1L << 32;
+    Method method = smallBox
+        ? new BoxSums(src, width, height, kernel, border)
+        : separated != null
+            ? new Separable(src, width, height, kernel, border, separated[0], separated[1])
+            : new Direct(src, width, height, kernel, border);
+    run(method, dst, width, height, kernel, border);
+  }
+
+  /**
+   * Convolve src with kernel into dst by weighting every pixel under it, whatever the kernel.
+   */
+  static void direct(int[] src, int[] dst, int width, int height, Kernel kernel,
+      BorderMode border) {
+    run(new Direct(src, width, height, kernel, border), dst, width, height, kernel, border);
+  }
+
+  private static void run(Method method, int[] dst, int width, int height, Kernel kernel,
+      BorderMode border) {
+    int radiusY = kernel.getHeight() / 2;
+    int chunk = Math.max(MIN_CHUNK_ROWS, 4 * radiusY);
+    double offset = kernel.getOffset();
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      for (int from = fromRow; from < toRow; from += chunk) {
+        method.rows(from, Math.min(toRow, from + chunk), dst, offset);
+      }
+    });
+    if (border == BorderMode.KEEP) {
+      keepBorder(method.src, dst, width, height, kernel.getWidth() / 2, radiusY);
+    }
+  }
+
+  /**
+   * Returns a channel rounded to the nearest integer and clamped to 0 to 255.
+   */
+  private static int channel(double value) {
+    long rounded = Math.round(value);
+    return rounded < 0 ? 0 : rounded > 255 ? 255 : (int) rounded;
+  }
+
+  private static int pack(double red, double green, double blue) {
+    return Picture.pack(channel(red), channel(green), channel(blue));
+  }
+
+  /**
+   * One way of computing the convolution over a range of output rows.
+   */
+  private abstract static class Method {
+
+    final int[] src;
+    final int width;
+    final int height;
+    final int radiusX;
+    final int radiusY;
+    final BorderMode border;
+
+    /**
+     * The source column of each column of a row widened by radiusX on both sides.
+     */
+    final int[] columns;
+
+    Method(int[] src, int width, int height, Kernel kernel, BorderMode border) {
+      this.src = src;
+      this.width = width;
+      this.height = height;
+      this.radiusX = kernel.getWidth() / 2;
+      this.radiusY = kernel.getHeight() / 2;
+      this.border = border;
+      columns = new int[width + 2 * radiusX];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = border.remap(i - radiusX, width);
+      }
+    }
+
+    /**
+     * Returns the index in src of the start of row y, which may be outside the picture.
+     */
+    int row(int y) {
+      return border.remap(y, height) * width;
+    }
+
+    /**
+     * Write the output rows fromRow (inclusive) to toRow (exclusive) into dst.
+     */
+    abstract void rows(int fromRow, int toRow, int[] dst, double offset);
+  }
+
+  private static final class Direct extends Method {
+
+    private final int[] tapX;
+    private final int[] tapY;
+    private final double[] tapWeight;
+
+    Direct(int[] src, int width, int height, Kernel kernel, BorderMode border) {
+      super(src, width, height, kernel, border);
+      double[] scaled = kernel.scaledWeights();
+      int taps = 0;
+      for (double weight : scaled) {
+        taps += weight == 0 ? 0 : 1;
+      }
+      tapX = new int[taps];
+      tapY = new int[taps];
+      tapWeight = new double[taps];
+      int tap = 0;
+      for (int i = 0; i < scaled.length; i++) {
+        if (scaled[i] != 0) {
+          tapX[tap] = i % kernel.getWidth();
+          tapY[tap] = i / kernel.getWidth() - radiusY;
+          tapWeight[tap++] = scaled[i];
+        }
+      }
+    }
+
+    @Override
+    void rows(int fromRow, int toRow, int[] dst, double offset) {
+      int[] tapRows = new int[tapY.length];
+      for (int y = fromRow; y < toRow; y++) {
+        for (int tap = 0; tap < tapRows.length; tap++) {
+          tapRows[tap] = row(y + tapY[tap]);
+        }
+        for (int x = 0; x < width; x++) {
+          double red = offset;
+          double green = offset;
+          double blue = offset;
+          for (int tap = 0; tap < tapRows.length; tap++) {
+            int rgb = src[tapRows[tap] + columns[x + tapX[tap]]];
+            double weight = tapWeight[tap];
+            red += weight * Picture.red(rgb);
+            green += weight * Picture.green(rgb);
+            blue += weight * Picture.blue(rgb);
+          }
+          dst[y * width + x] = pack(red, green, blue);
+        }
+      }
+    }
+  }
+
+  private static final class Separable extends Method {
+
+    private final double[] column;
+    private final double[] row;
+
+    Separable(int[] src, int width, int height, Kernel kernel, BorderMode border,
+        double[] column, double[] row) {
+      super(src, width, height, kernel, border);
+      this.column = column;
+      this.row = row;
+    }
+
+    @Override
+    void rows(int fromRow, int toRow, int[] dst, double offset) {
+      // The horizontal pass over every row the vertical pass reads, halo included
+      int rows = toRow - fromRow + 2 * radiusY;
+      double[] red = new double[rows * width];
+      double[] green = new double[rows * width];
+      double[] blue = new double[rows * width];
+      for (int r = 0; r < rows; r++) {
+        int start = row(fromRow - radiusY + r);
+        for (int x = 0; x < width; x++) {
+          double sumRed = 0;
+          double sumGreen = 0;
+          double sumBlue = 0;
+          for (int k = 0; k < row.length; k++) {
+            int rgb = src[start + columns[x + k]];
+            sumRed += row[k] * Picture.red(rgb);
+            sumGreen += row[k] * Picture.green(rgb);
+            sumBlue += row[k] * Picture.blue(rgb);
+          }
+          red[r * width + x] = sumRed;
+          green[r * width + x] = sumGreen;
+          blue[r * width + x] = sumBlue;
+        }
+      }
+      for (int y = fromRow; y < toRow; y++) {
+        int top = (y - fromRow) * width;
+        for (int x = 0; x < width; x++) {
+          double sumRed = offset;
+          double sumGreen = offset;
+          double sumBlue = offset;
+          for (int k = 0, i = top + x; k < column.length; k++, i += width) {
+            sumRed += column[k] * red[i];
+            sumGreen += column[k] * green[i];
+            sumBlue += column[k] * blue[i];
+          }
+          dst[y * width + x] = pack(sumRed, sumGreen, sumBlue);
+        }
+      }
+    }
+  }
+
+  private static final class BoxSums extends Method {
+
+    private final int windowWidth;
+    private final int windowHeight;
+    private final double weight;
+
+    BoxSums(int[] src, int width, int height, Kernel kernel, BorderMode border) {
+      super(src, width, height, kernel, border);
+      windowWidth = kernel.getWidth();
+      windowHeight = kernel.getHeight();
+      weight = kernel.scaledWeights()[0];
+    }
+
+    @Override
+    void rows(int fromRow, int toRow, int[] dst, double offset) {
+      // Summed-area tables over the rows read, widened by the halo on every side, with a zero
+      // row and column in front. Entries may overflow, but convolve only sums boxes whose window
+      // total is below 2^32, so the wrapped difference of four entries is still exact.
+      int rows = toRow - fromRow + 2 * radiusY;
+      int stride = columns.length + 1;
+      int[] red = new int[(rows + 1) * stride];
+      int[] green = new int[(rows + 1) * stride];
+      int[] blue = new int[(rows + 1) * stride];
+      for (int r = 0; r < rows; r++) {
+        int start = row(fromRow - radiusY + r);
+        int above = r * stride;
+        int here = above + stride;
+        int rowRed = 0;
+        int rowGreen = 0;
+        int rowBlue = 0;
+        for (int i = 0; i < columns.length; i++) {
+          int rgb = src[start + columns[i]];
+          rowRed += Picture.red(rgb);
+          rowGreen += Picture.green(rgb);
+          rowBlue += Picture.blue(rgb);
+          red[here + i + 1] = red[above + i + 1] + rowRed;
+          green[here + i + 1] = green[above + i + 1] + rowGreen;
+          blue[here + i + 1] = blue[above + i + 1] + rowBlue;
+        }
+      }
+      for (int y = fromRow; y < toRow; y++) {
+        int top = (y - fromRow) * stride;
+        int bottom = top + windowHeight * stride;
+        for (int x = 0; x < width; x++) {
+          int right = x + windowWidth;
+          long totalRed = Integer.toUnsignedLong(
+              red[bottom + right] - red[top + right] - red[bottom + x] + red[top + x]);
+          long totalGreen = Integer.toUnsignedLong(
+              green[bottom + right] - green[top + right] - green[bottom + x] + green[top + x]);
+          long totalBlue = Integer.toUnsignedLong(
+              blue[bottom + right] - blue[top + right] - blue[bottom + x] + blue[top + x]);
+          dst[y * width + x] = pack(offset + weight * totalRed,
+              offset + weight * totalGreen, offset + weight * totalBlue);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copy back from src every pixel of dst within marginX of the left or right edge, or within
+   * marginY of the top or bottom.
+   */
+  private static void keepBorder(int[] src, int[] dst, int width, int height, int marginX,
+      int marginY) {
+    int edge = Math.min(marginX, width);
+    for (int y = 0; y < height; y++) {
+      int row = y * width;
+      if (y < marginY || y >= height - marginY) {
+        System.arraycopy(src, row, dst, row, width);
+      } else {
+        System.arraycopy(src, row, dst, row, edge);
+        System.arraycopy(src, row + width - edge, dst, row + width - edge, edge);
+      }
+    }
+  }
+}
@@ -0,0 +1,330 @@
+package picture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A convolution kernel: an odd width by odd height grid of weights, centred on the pixel being
+ * computed. Each channel of an output pixel is the sum of each weight times the channel of the
+ * input pixel under it, divided by the divisor, plus the offset, rounded and clamped to 0 to 255.
+ * The weights are laid out as they are applied, so the top-left weight multiplies the top-left
+ * neighbour.
+ *
+ * <p>A kernel can be read from a text file with one row of whitespace separated weights per
+ * line. Optional <tt>divisor N</tt> and <tt>offset N</tt> lines set the divisor and offset, and
+ * anything after a <tt>#</tt> is a comment. For example, a 3x3 Gaussian:
+ *
+ * <pre>
+ * divisor 16
+ * 1 2 1
+ * 2 4 2
+ * 1 2 1
+ * </pre>
+ */
+public final class Kernel {
+
+  /**
+   * Relative difference between weights below which they are treated as equal, when deciding
+   * whether a kernel is a box or separable.
+   */
+  private static final double TOLERANCE = 1e-9;
+
+  /**
+   * The largest radius of {@link #box(int)} whose window total, (2 * radius + 1)^2 * 255, is below
+   * 2^32, so that summed-area tables of ints hold it exactly.
+   */
+  static final int MAX_BOX_RADIUS = 2051;
+
+  private final int width;
+  private final int height;
+  private final double[] weights;
+  private final double divisor;
+  private final double offset;
+
+  /**
+   * Construct a kernel.
+   *
+   * @param width   the number of columns of weights, which must be odd.
+   * @param height  the number of rows of weights, which must be odd.
+   * @param weights the weights in row-major order.
+   * @param divisor what the weighted sum is divided by.
+   * @param offset  what is added to the weighted sum after dividing.
+   * @throws IllegalArgumentException if a dimension is not odd and positive, there are not width
+   *                                  * height weights, or the divisor is zero.
+   */
+  public Kernel(int width, int height, double[] weights, double divisor, double offset) {
+    if (width < 1 || height < 1 || width % 2 == 0 || height % 2 == 0) {
+      throw new IllegalArgumentException("Kernel dimensions must be odd: " + width + "x" + height);
+    }
+    if (weights.length != width * height) {
+      throw new IllegalArgumentException("Expected " + width * height + " weights but got "
+          + weights.length);
+    }
+    if (divisor == 0 || !Double.isFinite(divisor)) {
+      throw new IllegalArgumentException("Divisor must be finite and non-zero: " + divisor);
+    }
+    this.width = width;
+    this.height = height;
+    this.weights = weights.clone();
+    this.divisor = divisor;
+    this.offset = offset;
+  }
+
+  /**
+   * Returns a kernel whose divisor is the sum of its weights, or 1 if they sum to zero, so that
+   * it preserves the brightness of flat areas where it can.
+   */
+  public static Kernel of(int width, int height, double... weights) {
+    double sum = Arrays.stream(weights).sum();
+    return new Kernel(width, height, weights, sum == 0 ? 1 : sum, 0);
+  }
+
+  /**
+   * Returns the kernel that averages every pixel at most radius away in both directions.
+   *
+   * @throws IllegalArgumentException if radius is negative or more than 2051.
+   */
+  public static Kernel box(int radius) {
+    if (radius < 0 || radius > MAX_BOX_RADIUS) {
+      throw new IllegalArgumentException(
+          "Radius must be between 0 and " + MAX_BOX_RADIUS + ": " + radius);
+    }
+    int size = 2 * radius + 1;
+    double[] weights = new double[size * size];
+    Arrays.fill(weights, 1);
+    return of(size, size, weights);
+  }
+
+  public static Kernel sharpen() {
+    return of(3, 3,
+        0, -1, 0,
+        -1, 5, -1,
+        0, -1, 0);
+  }
+
+  /**
+   * Returns the Sobel kernel for the horizontal gradient, which is bright where the picture gets
+   * brighter from left to right.
+   */
+  public static Kernel sobelX() {
+    return of(3, 3,
+        -1, 0, 1,
+        -2, 0, 2,
+        -1, 0, 1);
+  }
+
+  /**
+   * Returns the Sobel kernel for the vertical gradient, which is bright where the picture gets
+   * brighter from top to bottom.
+   */
+  public static Kernel sobelY() {
+    return of(3, 3,
+        -1, -2, -1,
+        0, 0, 0,
+        1, 2, 1);
+  }
+
+  /**
+   * Returns the Laplacian kernel, which is bright along edges in any direction.
+   */
+  public static Kernel edges() {
+    return of(3, 3,
+        -1, -1, -1,
+        -1, 8, -1,
+        -1, -1, -1);
+  }
+
+  /**
+   * Returns a kernel that makes the picture look raised, with flat areas mid-gray.
+   */
+  public static Kernel emboss() {
+    return new Kernel(3, 3, new double[] {
+        -2, -1, 0,
+        -1, 0, 1,
+        0, 1, 2}, 1, 128);
+  }
+
+  /**
+   * Returns the kernel with a built-in name: <tt>sharpen</tt>, <tt>sobelx</tt>, <tt>sobely</tt>,
+   * <tt>edges</tt>, <tt>emboss</tt> or <tt>box:N</tt> for a box of radius N, or null if name is
+   * none of those.
+   */
+  public static Kernel named(String name) {
+    if (name.startsWith("box:")) {
+      return box(Integer.parseInt(name.substring("box:".length())));
+    }
+    return switch (name) {
+      case "sharpen" -> sharpen();
+      case "sobelx" -> sobelX();
+      case "sobely" -> sobelY();
+      case "edges" -> edges();
+      case "emboss" -> emboss();
+      default -> null;
+    };
+  }
+
+  /**
+   * Read a kernel from a file in the format described above.
+   *
+   * @throws IllegalArgumentException if the file is not a valid kernel.
+   */
+  public static Kernel read(Path file) throws IOException {
+    return parse(Files.readAllLines(file));
+  }
+
+  /**
+   * Parse the lines of a kernel in the format described above.
+   *
+   * @throws IllegalArgumentException if lines are not a valid kernel.
+   */
+  public static Kernel parse(List<String> lines) {
+    Double divisor = null;
+    double offset = 0;
+    List<double[]> rows = new ArrayList<>();
+    for (String line : lines) {
+      int comment = line.indexOf('#');
+      String[] tokens = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+      if (tokens[0].isEmpty()) {
+        continue;
+      }
+      switch (tokens[0]) {
+        case "divisor" -> divisor = number(tokens, line);
+        case "offset" -> offset = number(tokens, line);
+        default -> {
+          double[] row = new double[tokens.length];
+          for (int i = 0; i < tokens.length; i++) {
+            row[i] = Double.parseDouble(tokens[i]);
+          }
+          if (!rows.isEmpty() && row.length != rows.get(0).length) {
+            throw new IllegalArgumentException("Kernel rows differ in length: " + line);
+          }
+          rows.add(row);
+        }
+      }
+    }
+    if (rows.isEmpty()) {
+      throw new IllegalArgumentException("Kernel has no weights");
+    }
+    int width = rows.get(0).length;
+    double[] weights = new double[width * rows.size()];
+    for (int y = 0; y < rows.size(); y++) {
+      System.arraycopy(rows.get(y), 0, weights, y * width, width);
+    }
+    Kernel kernel = of(width, rows.size(), weights);
+    return new Kernel(width, rows.size(), weights,
+        divisor == null ? kernel.divisor : divisor, offset);
+  }
+
+  private static double number(String[] tokens, String line) {
+    if (tokens.length != 2) {
+      throw new IllegalArgumentException("Expected one number: " + line);
+    }
+    return Double.parseDouble(tokens[1]);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public double getWeight(int x, int y) {
+    return weights[y * width + x];
+  }
+
+  public double getDivisor() {
+    return divisor;
+  }
+
+  public double getOffset() {
+    return offset;
+  }
+
+  /**
+   * Returns the weights divided by the divisor, in row-major order.
+   */
+  double[] scaledWeights() {
+    double[] scaled = new double[weights.length];
+    for (int i = 0; i < weights.length; i++) {
+      scaled[i] = weights[i] / divisor;
+    }
+    return scaled;
+  }
+
+  /**
+   * Returns true if every weight is the same, so that the weighted sum is a multiple of the sum
+   * over a rectangle.
+   */
+  boolean isBox() {
+    for (double weight : weights) {
+      if (!close(weight, weights[0])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a column and a row of scaled weights whose outer product is this kernel, or null if
+   * there are none. A kernel is separable exactly when all its rows are multiples of one row.
+   */
+  double[][] separate() {
+    double[] scaled = scaledWeights();
+    // The largest weight is the most accurate pivot
+    int pivot = 0;
+    for (int i = 1; i < scaled.length; i++) {
+      if (Math.abs(scaled[i]) > Math.abs(scaled[pivot])) {
+        pivot = i;
+      }
+    }
+    if (scaled[pivot] == 0) {
+      return null;
+    }
+    int pivotX = pivot % width;
+    int pivotY = pivot / width;
+    double[] column = new double[height];
+    double[] row = new double[width];
+    for (int y = 0; y < height; y++) {
+      column[y] = scaled[y * width + pivotX];
+    }
+    for (int x = 0; x < width; x++) {
+      row[x] = scaled[pivotY * width + x] / scaled[pivot];
+    }
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (!close(column[y] * row[x], scaled[y * width + x])) {
+          return null;
+        }
+      }
+    }
+    return new double[][] {column, row};
+  }
+
+  private static boolean close(double a, double b) {
+    return Math.abs(a - b) <= TOLERANCE * Math.max(Math.abs(a), Math.abs(b));
+  }
+
+  /**
+   * Returns the kernel in the file format, which {@link #parse(List)} turns back into an equal
+   * kernel.
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("divisor ").append(divisor).append('\n');
+    sb.append("offset ").append(offset).append('\n');
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        sb.append(x == 0 ? "" : " ").append(weights[y * width + x]);
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
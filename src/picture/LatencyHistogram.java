@@ -0,0 +1,90 @@
+package picture;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A lock-free histogram of non-negative longs, such as latencies in nanoseconds, in the style of
+ * HdrHistogram. Values below 64 have a bucket each. Above that, every power of two is split into
+ * 32 equal buckets, so any recorded value is known to within about 3%. Recording is one atomic
+ * increment, and the whole long range fits in under 2000 buckets.
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Returns the index of the bucket that holds value.
+   */
+  static int bucket(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    // value >>> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * Returns the largest value held by the bucket at index.
+   */
+  static long highestIn(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  void record(long value) {
+    long clamped = Math.max(0, value);
+    counts.incrementAndGet(bucket(clamped));
+    max.accumulate(clamped);
+  }
+
+  long getCount() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns a value that at least percentile percent of the recorded values are no greater than,
+   * or 0 if nothing has been recorded.
+   */
+  long getValueAtPercentile(double percentile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        // No bucket reports more than the largest value actually recorded
+        return Math.min(highestIn(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    max.reset();
+  }
+}
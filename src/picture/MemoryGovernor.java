@@ -0,0 +1,323 @@
+package picture;
+
+import java.awt.Dimension;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admits jobs against a budget of bytes of pixel memory, so that operations running at once on
+ * large pictures cannot together run out of heap. Each job states its peak footprint, usually
+ * from {@link #estimate(String[])}, and holds that many bytes of the budget until it closes its
+ * {@link Admission}. Jobs that do not fit wait their turn in arrival order, so a large job is not
+ * starved by a stream of small ones. Up to maxQueued jobs wait, and any beyond that are rejected.
+ */
+public final class MemoryGovernor {
+
+  /**
+   * The bytes of a packed pixel.
+   */
+  private static final long PIXEL_BYTES = 4;
+
+  /**
+   * The bytes per pixel of a strip when a job is run in strips through {@link RawPicture}: the
+   * decoded strip, its result and, for a blur, its halo and the rows it is read from.
+   */
+  static final long STRIP_BYTES_PER_PIXEL = 6 * PIXEL_BYTES;
+
+  private final long budget;
+  private final int maxQueued;
+  private final ArrayDeque<Object> waiting = new ArrayDeque<>();
+  private long usedBytes;
+  private long admitted;
+  private long rejected;
+
+  /**
+   * Construct a governor with nothing admitted.
+   *
+   * @param budget    the most bytes that admitted jobs hold at once.
+   * @param maxQueued the most jobs that wait for memory before new ones are rejected.
+   */
+  public MemoryGovernor(long budget, int maxQueued) {
+    if (budget < 1 || maxQueued < 0) {
+      throw new IllegalArgumentException("Invalid limits: " + budget + ", " + maxQueued);
+    }
+    this.budget = budget;
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Returns once bytes of the budget are free, holding them until the admission is closed.
+   *
+   * @throws IllegalArgumentException   if bytes is more than the whole budget, so could never be
+   *                                    admitted.
+   * @throws RejectedExecutionException if the job would have to wait and maxQueued jobs already
+   *                                    are.
+   * @throws InterruptedException       if interrupted while waiting.
+   */
+  public Admission admit(long bytes) throws InterruptedException {
+    if (bytes < 0 || bytes > budget) {
+      throw new IllegalArgumentException(
+          "Cannot admit " + bytes + " bytes with a budget of " + budget);
+    }
+    synchronized (this) {
+      if (waiting.isEmpty() && usedBytes + bytes <= budget) {
+        return take(bytes);
+      }
+      if (waiting.size() >= maxQueued) {
+        rejected++;
+        throw new RejectedExecutionException("Memory budget full: " + this);
+      }
+      Object turn = new Object();
+      waiting.addLast(turn);
+      try {
+        while (waiting.peekFirst() != turn || usedBytes + bytes > budget) {
+          wait();
+        }
+      } finally {
+        waiting.remove(turn);
+        // The next in line may fit in what is left
+        notifyAll();
+      }
+      return take(bytes);
+    }
+  }
+
+  private Admission take(long bytes) {
+    usedBytes += bytes;
+    admitted++;
+    return new Admission(bytes);
+  }
+
+  private synchronized void release(long bytes) {
+    usedBytes -= bytes;
+    notifyAll();
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Returns the number of jobs waiting for memory.
+   */
+  public synchronized int getQueued() {
+    return waiting.size();
+  }
+
+  public synchronized long getAdmitted() {
+    return admitted;
+  }
+
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "memory usedKB=" + usedBytes / 1024
+        + " budgetKB=" + budget / 1024
+        + " queued=" + waiting.size()
+        + " admitted=" + admitted
+        + " rejected=" + rejected;
+  }
+
+  /**
+   * Returns roughly the most bytes of pixels that the {@link PictureProcessor} command args holds
+   * at once, from the dimensions in the headers of its inputs, or 0 if the command holds no
+   * pictures itself or is malformed. A batch or sequence is estimated with its default number of
+   * files in flight. Serve is 0, since each request to the server is admitted on its own.
+   */
+  static long estimate(String[] args) {
+    return estimate(args, inputDimensions(args));
+  }
+
+  /**
+   * Returns the estimate for args like {@link #estimate(String[])}, given the dimensions of its
+   * input from {@link #inputDimensions(String[])}.
+   */
+  static long estimate(String[] args, Dimension input) {
+    try {
+      int last = args.length - 1;
+      return switch (args[0]) {
+        // Input, output and the buffer the output is encoded into
+        case "invert", "grayscale", "autolevels", "equalize" -> copies(input, 3);
+        case "stats" -> copies(input, 1);
+        case "rotate", "flip", "convolve" -> copies(input, 3);
+        // A Gaussian adds an intermediate pass
+        case "blur" -> copies(input, 3);
+        case "gaussian" -> copies(input, 4);
+        case "pipeline" -> copies(input, pipelineCopies(args[1]));
+        case "batch", "sequence" -> concurrentEstimate(args, BatchProcessor.DEFAULT_IN_FLIGHT);
+        case "resize" -> resize(args[1], input);
+        case "blend" -> blend(args[1].equals("--weights")
+            ? List.of(args).subList(3, last) : List.of(args).subList(1, last));
+        case "mosaic" -> mosaic(List.of(args).subList(2, last));
+        case "raw" -> STRIP_BYTES_PER_PIXEL * RawPicture.DEFAULT_STRIP_PIXELS;
+        default -> 0;
+      };
+    } catch (RuntimeException e) {
+      // Missing inputs and bad arguments are left to the command itself to report
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the dimensions of the picture that the {@link PictureProcessor} command args reads
+   * first, from its header, or null if the command reads no single picture or it cannot be read.
+   */
+  static Dimension inputDimensions(String[] args) {
+    try {
+      int last = args.length - 1;
+      String input = switch (args[0]) {
+        case "invert", "grayscale", "autolevels", "equalize", "stats" -> args[1];
+        case "rotate", "flip", "pipeline", "mosaic" -> args[2];
+        case "convolve", "blur", "gaussian", "resize" -> args[last - 1];
+        case "blend" -> args[args[1].equals("--weights") ? 3 : 1];
+        default -> null;
+      };
+      return input == null ? null : Picture.readDimensions(input);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns roughly the most bytes of pixels that a batch or sequence command holds with at most
+   * inFlight files or outputs in flight, or 0 for any other command.
+   */
+  static long concurrentEstimate(String[] args, int inFlight) {
+    try {
+      int last = args.length - 1;
+      if (args[0].equals("batch")) {
+        // Each file in flight is decoded, processed and encoded on its own
+        List<Path> inputs = BatchProcessor.expand(args[2]);
+        long largest = 0;
+        for (Path file : inputs) {
+          largest = Math.max(largest, pixels(file.toString()));
+        }
+        long files = Math.min(inputs.size(), inFlight);
+        return files * pipelineCopies(args[1]) * PIXEL_BYTES * largest;
+      }
+      if (args[0].equals("sequence")) {
+        List<Path> frames = BatchProcessor.expand(args[last - 1]);
+        if (frames.isEmpty()) {
+          return 0;
+        }
+        long frame = PIXEL_BYTES * pixels(frames.get(0).toString());
+        // The window, the frames decoded ahead and three channel totals, then a blend and its
+        // pipeline for each output in flight
+        int held = Integer.parseInt(args[1]) + SequenceProcessor.DEFAULT_DECODE_THREADS + 1 + 3;
+        int copies = pipelineCopies(args.length == 5 ? args[2] : "");
+        return held * frame + (long) inFlight * copies * frame;
+      }
+      return 0;
+    } catch (RuntimeException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the most files or outputs a batch or sequence command can have in flight, up to its
+   * default, within bytes, or 0 if even one does not fit or the command is neither.
+   */
+  static int inFlightWithin(String[] args, long bytes) {
+    long fixed = concurrentEstimate(args, 0);
+    long perJob = concurrentEstimate(args, 1) - fixed;
+    if (perJob <= 0) {
+      return 0;
+    }
+    long fits = Math.max(0, (bytes - fixed) / perJob);
+    return (int) Math.min(BatchProcessor.DEFAULT_IN_FLIGHT, fits);
+  }
+
+  /**
+   * Returns how many full size pictures a pipeline holds at once, from its spec.
+   */
+  private static int pipelineCopies(String spec) {
+    // Input, output and encoding, and for blurs an intermediate pass
+    return spec.contains("blur") || spec.contains("gaussian") ? 4 : 3;
+  }
+
+  private static long pixels(String filepath) {
+    Dimension dimensions = Picture.readDimensions(filepath);
+    return (long) dimensions.width * dimensions.height;
+  }
+
+  private static long copies(Dimension input, int copies) {
+    return input == null ? 0 : copies * PIXEL_BYTES * input.width * input.height;
+  }
+
+  private static long resize(String sizes, Dimension input) {
+    if (input == null) {
+      return 0;
+    }
+    // The input and the pyramid of halvings built from it, at most a third as large again
+    long bytes = PIXEL_BYTES * input.width * input.height * 4 / 3;
+    for (String size : sizes.split(",")) {
+      String[] parts = size.split("x");
+      long width = Integer.parseInt(parts[0]);
+      long height = Integer.parseInt(parts[1]);
+      // The horizontal pass, the output and its encoding
+      bytes += PIXEL_BYTES * (width * input.height + 2 * width * height);
+    }
+    return bytes;
+  }
+
+  private static long blend(List<String> filepaths) {
+    // Inputs are decoded one at a time into three channel totals
+    long largest = 0;
+    long smallest = Long.MAX_VALUE;
+    for (String filepath : filepaths) {
+      long pixels = pixels(filepath);
+      largest = Math.max(largest, pixels);
+      smallest = Math.min(smallest, pixels);
+    }
+    return PIXEL_BYTES * (largest + 5 * smallest);
+  }
+
+  private static long mosaic(List<String> filepaths) {
+    // Inputs are decoded a row at a time straight into the output
+    long smallest = Long.MAX_VALUE;
+    long rows = 0;
+    for (String filepath : filepaths) {
+      Dimension dimensions = Picture.readDimensions(filepath);
+      smallest = Math.min(smallest, (long) dimensions.width * dimensions.height);
+      rows += dimensions.width;
+    }
+    return PIXEL_BYTES * (2 * smallest + rows);
+  }
+
+  /**
+   * Bytes of the budget held by an admitted job, given back when it is closed.
+   */
+  public final class Admission implements AutoCloseable {
+
+    private final long bytes;
+    private boolean closed;
+
+    private Admission(long bytes) {
+      this.bytes = bytes;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    @Override
+    public void close() {
+      synchronized (MemoryGovernor.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      release(bytes);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package picture;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latency, throughput and allocation recorded for one named operation, such as
+ * <tt>invert</tt> or <tt>decode</tt>. Each run is timed by a {@link Span} from {@link #start()}.
+ */
+public final class OperationStats implements OperationStatsMXBean {
+
+  /**
+   * One timed run of an operation, stopped once the dimensions of its input are known.
+   */
+  public static final class Span {
+
+    private static final Span DISABLED = new Span(null, 0, 0);
+
+    private final OperationStats stats;
+    private final long startNanos;
+    private final long startBytes;
+
+    private Span(OperationStats stats, long startNanos, long startBytes) {
+      this.stats = stats;
+      this.startNanos = startNanos;
+      this.startBytes = startBytes;
+    }
+
+    /**
+     * Record this run, which processed a width by height picture.
+     */
+    public void stop(int width, int height) {
+      if (stats != null) {
+        long nanos = System.nanoTime() - startNanos;
+        stats.record(nanos, Metrics.allocatedBytes() - startBytes, width, height);
+      }
+    }
+  }
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private final String name;
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAdder pixels = new LongAdder();
+  private final LongAdder bytesAllocated = new LongAdder();
+  private volatile int lastWidth;
+  private volatile int lastHeight;
+
+  OperationStats(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Start timing a run of this operation, or do nothing if metrics are disabled.
+   */
+  public Span start() {
+    if (!Metrics.isEnabled()) {
+      return Span.DISABLED;
+    }
+    return new Span(this, System.nanoTime(), Metrics.allocatedBytes());
+  }
+
+  private void record(long nanos, long bytes, int width, int height) {
+    latencies.record(nanos);
+    totalNanos.add(nanos);
+    pixels.add((long) width * height);
+    bytesAllocated.add(Math.max(0, bytes));
+    lastWidth = width;
+    lastHeight = height;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public long getCount() {
+    return latencies.getCount();
+  }
+
+  @Override
+  public double getTotalMillis() {
+    return totalNanos.sum() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getMeanMillis() {
+    long count = getCount();
+    return count == 0 ? 0 : getTotalMillis() / count;
+  }
+
+  @Override
+  public double getMedianMillis() {
+    return latencies.getValueAtPercentile(50) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double get99thPercentileMillis() {
+    return latencies.getValueAtPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return latencies.getMax() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getMegapixelsPerSecond() {
+    long nanos = totalNanos.sum();
+    // Pixels per nanosecond times 1000 is millions of pixels per second
+    return nanos == 0 ? 0 : pixels.sum() * 1e3 / nanos;
+  }
+
+  @Override
+  public long getBytesAllocated() {
+    return bytesAllocated.sum();
+  }
+
+  @Override
+  public int getLastWidth() {
+    return lastWidth;
+  }
+
+  @Override
+  public int getLastHeight() {
+    return lastHeight;
+  }
+
+  @Override
+  public void reset() {
+    latencies.reset();
+    totalNanos.reset();
+    pixels.reset();
+    bytesAllocated.reset();
+    lastWidth = 0;
+    lastHeight = 0;
+  }
+
+  /**
+   * Returns a one line summary of the runs recorded so far.
+   */
+  @Override
+  public String toString() {
+    String summary = String.format("%s count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms"
+            + " alloc=%dKB", name, getCount(), getMeanMillis(), getMedianMillis(),
+        get99thPercentileMillis(), getMaxMillis(), getBytesAllocated() / 1024);
+    if (pixels.sum() == 0) {
+      // Nothing recorded has dimensions, such as batches or commands whose input was unreadable
+      return summary;
+    }
+    return summary + String.format(" %.1f MP/s last=%dx%d", getMegapixelsPerSecond(),
+        lastWidth, lastHeight);
+  }
+}
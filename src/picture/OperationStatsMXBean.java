@@ -0,0 +1,39 @@
+package picture;
+
+/**
+ * The JMX view of the {@link OperationStats} of one operation, registered by {@link Metrics} under
+ * the name <tt>picture:type=Operation,name=</tt><i>operation</i>.
+ */
+public interface OperationStatsMXBean {
+
+  String getName();
+
+  long getCount();
+
+  double getTotalMillis();
+
+  double getMeanMillis();
+
+  double getMedianMillis();
+
+  double get99thPercentileMillis();
+
+  double getMaxMillis();
+
+  /**
+   * Returns the pixels processed per second of time spent in this operation, in millions.
+   */
+  double getMegapixelsPerSecond();
+
+  /**
+   * Returns the bytes allocated by the calling threads of this operation. Allocation by worker
+   * threads of parallel operations is not included.
+   */
+  long getBytesAllocated();
+
+  int getLastWidth();
+
+  int getLastHeight();
+
+  void reset();
+}
@@ -1,10 +1,26 @@
 package picture;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Function;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * A class that encapsulates and provides a simplified interface for
@@ -14,25 +30,96 @@ import javax.imageio.ImageIO;
 @SuppressWarnings("SuspiciousNameCombination")
 public class Picture {
 
+  private static final long NOT_HASHED = -1;
+
+  // Timings of each operation, kept by Metrics
+  private static final OperationStats INVERT = Metrics.operation("invert");
+  private static final OperationStats GRAYSCALE = Metrics.operation("grayscale");
+  private static final OperationStats ROTATE_90 = Metrics.operation("rotate90");
+  private static final OperationStats ROTATE_180 = Metrics.operation("rotate180");
+  private static final OperationStats ROTATE_270 = Metrics.operation("rotate270");
+  private static final OperationStats FLIP_HORIZONTAL = Metrics.operation("flipHorizontal");
+  private static final OperationStats FLIP_VERTICAL = Metrics.operation("flipVertical");
+  private static final OperationStats BLEND = Metrics.operation("blend");
+  private static final OperationStats BLUR = Metrics.operation("blur");
+  private static final OperationStats GAUSSIAN_BLUR = Metrics.operation("gaussianBlur");
+  private static final OperationStats MOSAIC = Metrics.operation("mosaic");
+  private static final OperationStats RESIZE = Metrics.operation("resize");
+  private static final OperationStats CONVOLVE = Metrics.operation("convolve");
+  private static final OperationStats STATISTICS = Metrics.operation("statistics");
+  private static final OperationStats AUTO_LEVELS = Metrics.operation("autoLevels");
+  private static final OperationStats EQUALIZE = Metrics.operation("equalize");
+
   /**
    * The internal image representation of this picture.
    */
   private final BufferedImage image;
 
+  /**
+   * The pixels of this picture packed as 0xRRGGBB in row-major order. This is
+   * the data array backing the raster of image, so writes to it are visible in
+   * image and vice versa.
+   */
+  private final int[] pixels;
+
+  /**
+   * The value of hashCode in the low 32 bits, or NOT_HASHED if it has not
+   * been computed since the pixels last changed.
+   */
+  private volatile long cachedHash = NOT_HASHED;
+
   /**
    * Construct a new (blank) Picture object with the specified width and
    * height.
    */
   public Picture(int width, int height) {
-    image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    this(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
   }
 
   /**
    * Construct a new Picture from the image data in the specified file.
    */
   public Picture(String filepath) {
+    this(read(filepath));
+  }
+
+  Picture(BufferedImage image) {
+    this.image = image;
+    this.pixels = image == null ? null
+        : ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
+  private static BufferedImage read(String filepath) {
     try {
-      image = ImageIO.read(new File(filepath));
+      return PictureIO.readImage(Paths.get(filepath));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Read the width and height of the image in the specified file from its
+   * header, without decoding any pixels.
+   *
+   * @param filepath the image file to inspect.
+   * @return the dimensions of the image in filepath.
+   */
+  public static Dimension readDimensions(String filepath) {
+    try (ImageInputStream in = ImageIO.createImageInputStream(new File(filepath))) {
+      if (in == null) {
+        throw new IOException("Cannot open " + filepath);
+      }
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        throw new IOException("Unsupported image format: " + filepath);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -72,15 +159,14 @@ public class Picture {
         || image.getHeight() != otherPic.image.getHeight()) {
       return false;
     }
-
-    for (int i = 0; i < image.getWidth(); i++) {
-      for (int j = 0; j < image.getHeight(); j++) {
-        if (image.getRGB(i, j) != otherPic.image.getRGB(i, j)) {
-          return false;
-        }
-      }
+    // Pictures with different cached hashes cannot be equal
+    long hash = cachedHash;
+    long otherHash = otherPic.cachedHash;
+    if (hash != NOT_HASHED && otherHash != NOT_HASHED && hash != otherHash) {
+      return false;
     }
-    return true;
+    // The rows are contiguous, so this compares them all in one bulk mismatch
+    return Arrays.equals(pixels, otherPic.pixels);
   }
 
   /**
@@ -102,8 +188,71 @@ public class Picture {
    *                                        the boundaries of this picture.
    */
   public Color getPixel(int x, int y) {
-    int rgb = image.getRGB(x, y);
-    return new Color((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+    int rgb = getRGB(x, y);
+    return new Color(red(rgb), green(rgb), blue(rgb));
+  }
+
+  /**
+   * Return the pixel-value located at (x,y) packed as <tt>0xRRGGBB</tt>. Unlike
+   * {@link #getPixel(int, int)} this allocates nothing.
+   *
+   * @param x x-coordinate of the pixel value to return
+   * @param y y-coordinate of the pixel value to return
+   * @return the packed RGB components of the pixel-value located at (x,y).
+   * @throws ArrayIndexOutOfBoundsException if the specified pixel-location is not contained within
+   *                                        the boundaries of this picture.
+   */
+  public int getRGB(int x, int y) {
+    return pixels[index(x, y)];
+  }
+
+  /**
+   * Return the red component, from 0 to 255, of the pixel-value located at (x,y).
+   */
+  public int getRed(int x, int y) {
+    return red(getRGB(x, y));
+  }
+
+  /**
+   * Return the green component, from 0 to 255, of the pixel-value located at (x,y).
+   */
+  public int getGreen(int x, int y) {
+    return green(getRGB(x, y));
+  }
+
+  /**
+   * Return the blue component, from 0 to 255, of the pixel-value located at (x,y).
+   */
+  public int getBlue(int x, int y) {
+    return blue(getRGB(x, y));
+  }
+
+  /**
+   * Copy row y of this picture into dst from offset onwards, packed as
+   * <tt>0xRRGGBB</tt>. Reusing dst for every row reads the picture without
+   * allocating.
+   *
+   * @param y      the row to read.
+   * @param dst    the array to copy the row into.
+   * @param offset the index in dst of the first pixel of the row.
+   * @return dst.
+   * @throws ArrayIndexOutOfBoundsException if y is not a row of this picture or
+   *                                        dst is too short.
+   */
+  public int[] getRow(int y, int[] dst, int offset) {
+    System.arraycopy(pixels, index(0, y), dst, offset, getWidth());
+    return dst;
+  }
+
+  /**
+   * Returns a read-only view of row y of this picture, packed as
+   * <tt>0xRRGGBB</tt>. The view shares the pixels of this picture, so it
+   * sees any later change to them.
+   *
+   * @throws ArrayIndexOutOfBoundsException if y is not a row of this picture.
+   */
+  public IntBuffer getRowBuffer(int y) {
+    return IntBuffer.wrap(pixels, index(0, y), getWidth()).slice().asReadOnlyBuffer();
   }
 
   /**
@@ -115,23 +264,79 @@ public class Picture {
     return image.getWidth();
   }
 
+  /**
+   * Returns a hash of the dimensions and pixels of this picture. It is
+   * computed once and cached until the pixels are next changed.
+   */
   @Override
   public int hashCode() {
     if (image == null) {
       return -1;
     }
-    int hashCode = 0;
-    for (int i = 0; i < image.getWidth(); i++) {
-      for (int j = 0; j < image.getHeight(); j++) {
-        hashCode = 31 * hashCode + image.getRGB(i, j);
+    long hash = cachedHash;
+    if (hash == NOT_HASHED) {
+      int content = PointKernels.get().hash(pixels);
+      hash = 31 * (31 * getWidth() + getHeight()) + content;
+      cachedHash = hash & 0xffffffffL;
+    }
+    return (int) hash;
+  }
+
+  /**
+   * Compare this picture with other pixel by pixel, without building a
+   * difference image.
+   *
+   * @param other a picture with the same dimensions as this one.
+   * @return the number of differing pixels, the first of them in row-major
+   *     order and the smallest rectangle that holds them all.
+   * @throws IllegalArgumentException if other has different dimensions.
+   */
+  public PictureDiff diff(Picture other) {
+    int width = getWidth();
+    int height = getHeight();
+    if (other.getWidth() != width || other.getHeight() != height) {
+      throw new IllegalArgumentException("Cannot diff a " + width + "x" + height
+          + " picture with a " + other.getWidth() + "x" + other.getHeight() + " one");
+    }
+    int[] mine = pixels;
+    int[] theirs = other.pixels;
+    long mismatches = 0;
+    int first = -1;
+    int minX = width;
+    int maxX = -1;
+    int minY = height;
+    int maxY = -1;
+    for (int y = 0; y < height; y++) {
+      int row = y * width;
+      int end = row + width;
+      // Skips each run of equal pixels with one bulk mismatch
+      int x = Arrays.mismatch(mine, row, end, theirs, row, end);
+      if (x < 0) {
+        continue;
+      }
+      if (first < 0) {
+        first = row + x;
+      }
+      minY = Math.min(minY, y);
+      maxY = y;
+      minX = Math.min(minX, x);
+      while (x >= 0) {
+        mismatches++;
+        maxX = Math.max(maxX, x);
+        int next = Arrays.mismatch(mine, row + x + 1, end, theirs, row + x + 1, end);
+        x = next < 0 ? -1 : x + 1 + next;
       }
     }
-    return hashCode;
+    if (first < 0) {
+      return new PictureDiff(0, -1, -1, new Rectangle());
+    }
+    return new PictureDiff(mismatches, first % width, first / width,
+        new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1));
   }
 
   public void saveAs(String filepath) {
     try {
-      ImageIO.write(image, "png", new File(filepath));
+      PictureIO.write(this, Paths.get(filepath));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -147,14 +352,111 @@ public class Picture {
    *                                        the boundaries of this picture.
    */
   public void setPixel(int x, int y, Color rgb) {
+    setRGB(x, y, pack(0xff & rgb.getRed(), 0xff & rgb.getGreen(), 0xff & rgb.getBlue()));
+  }
+
+  /**
+   * Update the pixel-value at the specified location to rgb, packed as
+   * <tt>0xRRGGBB</tt>. Any bits above the blue, green and red bytes are
+   * ignored.
+   *
+   * @param x   the x-coordinate of the pixel to be updated
+   * @param y   the y-coordinate of the pixel to be updated
+   * @param rgb the packed RGB components of the updated pixel-value
+   * @throws ArrayIndexOutOfBoundsException if the specified pixel-location is not contained within
+   *                                        the boundaries of this picture.
+   */
+  public void setRGB(int x, int y, int rgb) {
+    cachedHash = NOT_HASHED;
+    pixels[index(x, y)] = rgb & 0xffffff;
+  }
+
+  /**
+   * Update the pixel-value at the specified location from its red, green and
+   * blue components, each of which keeps only its low 8 bits.
+   */
+  public void setRGB(int x, int y, int red, int green, int blue) {
+    setRGB(x, y, pack(0xff & red, 0xff & green, 0xff & blue));
+  }
 
-    image.setRGB(
-        x,
-        y,
-        0xff000000
-            | (((0xff & rgb.getRed()) << 16)
-            | ((0xff & rgb.getGreen()) << 8)
-            | (0xff & rgb.getBlue())));
+  /**
+   * Overwrite row y of this picture with the packed <tt>0xRRGGBB</tt> pixels
+   * of src from offset onwards. Any bits above the blue, green and red bytes
+   * are ignored.
+   *
+   * @param y      the row to write.
+   * @param src    the array holding the new row.
+   * @param offset the index in src of the first pixel of the row.
+   * @throws ArrayIndexOutOfBoundsException if y is not a row of this picture or
+   *                                        src is too short.
+   */
+  public void setRow(int y, int[] src, int offset) {
+    int start = index(0, y);
+    int width = getWidth();
+    int[] dst = writablePixels();
+    System.arraycopy(src, offset, dst, start, width);
+    for (int i = start; i < start + width; i++) {
+      dst[i] &= 0xffffff;
+    }
+  }
+
+  private int index(int x, int y) {
+    if (!contains(x, y)) {
+      throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+    }
+    return y * getWidth() + x;
+  }
+
+  static int red(int rgb) {
+    return (rgb >> 16) & 0xff;
+  }
+
+  static int green(int rgb) {
+    return (rgb >> 8) & 0xff;
+  }
+
+  static int blue(int rgb) {
+    return rgb & 0xff;
+  }
+
+  static int pack(int red, int green, int blue) {
+    return (red << 16) | (green << 8) | blue;
+  }
+
+  static int invert(int rgb) {
+    // 255 - c for every channel is the same as flipping its low 8 bits
+    return rgb ^ 0xffffff;
+  }
+
+  static int grayscale(int rgb) {
+    int avg = (red(rgb) + green(rgb) + blue(rgb)) / 3;
+    return pack(avg, avg, avg);
+  }
+
+  /**
+   * Returns the packed pixel array backing this picture.
+   */
+  int[] data() {
+    // Callers may write to the array, so the hash must be recomputed
+    cachedHash = NOT_HASHED;
+    return pixels;
+  }
+
+  /**
+   * Returns the packed pixel array backing this picture, for callers that
+   * only read it.
+   */
+  int[] dataForReading() {
+    return pixels;
+  }
+
+  /**
+   * Returns the pixel array of this picture for an operation that is about
+   * to overwrite it.
+   */
+  private int[] writablePixels() {
+    cachedHash = NOT_HASHED;
+    return pixels;
   }
 
   /**
@@ -166,13 +468,13 @@ public class Picture {
 
     for (int y = 0; y < getHeight(); y++) {
       for (int x = 0; x < getWidth(); x++) {
-        Color rgb = getPixel(x, y);
+        int rgb = getRGB(x, y);
         sb.append("(");
-        sb.append(rgb.getRed());
+        sb.append(red(rgb));
         sb.append(",");
-        sb.append(rgb.getGreen());
+        sb.append(green(rgb));
         sb.append(",");
-        sb.append(rgb.getBlue());
+        sb.append(blue(rgb));
         sb.append(")");
       }
       sb.append("\n");
@@ -199,91 +501,311 @@ public class Picture {
     return List.of(minWidth, minHeight);
   }
 
+  /**
+   * Set the number of threads used by the operations of every Picture. With a
+   * parallelism of 1 (the default) all operations run sequentially on the
+   * calling thread.
+   *
+   * @param threads the number of worker threads, at least 1.
+   * @throws IllegalArgumentException if threads is less than 1.
+   */
+  public static void setParallelism(int threads) {
+    RowBands.setParallelism(threads);
+  }
+
+  public static int getParallelism() {
+    return RowBands.getParallelism();
+  }
+
+  /**
+   * Set the size, in output pixels, below which operations stay sequential
+   * even when a parallelism above 1 is set.
+   *
+   * @param pixels the minimum number of output pixels for parallel execution.
+   * @throws IllegalArgumentException if pixels is negative.
+   */
+  public static void setParallelThreshold(int pixels) {
+    RowBands.setThreshold(pixels);
+  }
+
+  public static int getParallelThreshold() {
+    return RowBands.getThreshold();
+  }
+
+  /**
+   * Check that dst can hold a width by height output of an operation on this
+   * picture. Operations that read each pixel only to write the same pixel may
+   * also write into this picture itself.
+   */
+  private void checkDestination(Picture dst, int width, int height, boolean allowSelf) {
+    if (dst.getWidth() != width || dst.getHeight() != height) {
+      throw new IllegalArgumentException("Destination is " + dst.getWidth() + "x"
+          + dst.getHeight() + " but the output is " + width + "x" + height);
+    }
+    if (dst == this && !allowSelf) {
+      throw new IllegalArgumentException("Destination must not be the source picture");
+    }
+  }
+
   public Picture invert() {
+    return invert(new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Invert the colours of this picture into dst, which may be this picture.
+   *
+   * @param dst a picture with the same dimensions as this one.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions.
+   */
+  public Picture invert(Picture dst) {
+    OperationStats.Span span = INVERT.start();
     // Inverts the color of the picture
-    Picture out = new Picture(getWidth(), getHeight());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        Color pixel = getPixel(x, y);
-        out.setPixel(x, y, pixel.invert());
-      }
-    }
-    return out;
+    int width = getWidth();
+    checkDestination(dst, width, getHeight(), true);
+    int[] src = pixels;
+    int[] out = dst.writablePixels();
+    PointKernels kernels = PointKernels.get();
+    RowBands.forEach(width, getHeight(), (fromRow, toRow) ->
+        kernels.invert(src, out, fromRow * width, toRow * width));
+    span.stop(width, getHeight());
+    return dst;
+  }
+
+  public void invertInPlace() {
+    invert(this);
   }
 
   public Picture grayscale() {
+    return grayscale(new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Convert this picture to grayscale into dst, which may be this picture.
+   *
+   * @param dst a picture with the same dimensions as this one.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions.
+   */
+  public Picture grayscale(Picture dst) {
+    OperationStats.Span span = GRAYSCALE.start();
     // Converts the picture to grayscale by averaging color values
-    Picture out = new Picture(getWidth(), getHeight());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        Color pixel = getPixel(x, y);
-        int avg = (pixel.getBlue() + pixel.getGreen() + pixel.getRed()) / 3;
-        out.setPixel(x, y, new Color(avg, avg, avg));
-      }
-    }
-    return out;
+    int width = getWidth();
+    checkDestination(dst, width, getHeight(), true);
+    int[] src = pixels;
+    int[] out = dst.writablePixels();
+    PointKernels kernels = PointKernels.get();
+    RowBands.forEach(width, getHeight(), (fromRow, toRow) ->
+        kernels.grayscale(src, out, fromRow * width, toRow * width));
+    span.stop(width, getHeight());
+    return dst;
+  }
+
+  public void grayscaleInPlace() {
+    grayscale(this);
   }
 
   public Picture rotate90() {
+    return rotate90(new Picture(getHeight(), getWidth()));
+  }
+
+  /**
+   * Rotate this picture 90 degrees clockwise into dst.
+   *
+   * @param dst a picture as wide as this one is high and as high as this one
+   *            is wide, other than this picture.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has the wrong dimensions or is
+   *                                  this picture.
+   */
+  public Picture rotate90(Picture dst) {
+    OperationStats.Span span = ROTATE_90.start();
     // Rotates the picture 90 degrees clockwise
     // Returns a picture after rotation
-    Picture out = new Picture(getHeight(), getWidth());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        out.setPixel(getHeight() - y - 1, x, getPixel(x, y));
-      }
-    }
-    return out;
+    int width = getWidth();
+    int height = getHeight();
+    checkDestination(dst, height, width, false);
+    // (x, y) moves to (height - y - 1, x) in a picture that is height wide
+    Rotation.rotate90(pixels, dst.writablePixels(), width, height);
+    span.stop(width, height);
+    return dst;
   }
 
   public Picture rotate180() {
+    return rotate180(new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Rotate this picture 180 degrees into dst.
+   *
+   * @param dst a picture with the same dimensions as this one, other than this
+   *            picture.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions or is
+   *                                  this picture.
+   */
+  public Picture rotate180(Picture dst) {
+    OperationStats.Span span = ROTATE_180.start();
     // Rotates the picture 180 degrees clockwise
     // Returns a picture after rotation
-    Picture out = new Picture(getWidth(), getHeight());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        out.setPixel(x, y, getPixel(getWidth() - x - 1,
-            getHeight() - y - 1));
+    int width = getWidth();
+    checkDestination(dst, width, getHeight(), false);
+    int[] src = pixels;
+    int[] out = dst.writablePixels();
+    int last = src.length - 1;
+    RowBands.forEach(width, getHeight(), (fromRow, toRow) -> {
+      for (int i = fromRow * width; i < toRow * width; i++) {
+        out[i] = src[last - i];
       }
-    }
-    return out;
+    });
+    span.stop(width, getHeight());
+    return dst;
+  }
+
+  public void rotate180InPlace() {
+    OperationStats.Span span = ROTATE_180.start();
+    // Swaps each pixel in the first half of the array with its mirror image.
+    // Each pixel index is treated as a one pixel row to split the work.
+    int[] data = writablePixels();
+    int last = data.length - 1;
+    RowBands.forEach(1, data.length / 2, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        int swap = data[i];
+        data[i] = data[last - i];
+        data[last - i] = swap;
+      }
+    });
+    span.stop(getWidth(), getHeight());
   }
 
   public Picture rotate270() {
+    return rotate270(new Picture(getHeight(), getWidth()));
+  }
+
+  /**
+   * Rotate this picture 270 degrees clockwise into dst.
+   *
+   * @param dst a picture as wide as this one is high and as high as this one
+   *            is wide, other than this picture.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has the wrong dimensions or is
+   *                                  this picture.
+   */
+  public Picture rotate270(Picture dst) {
+    OperationStats.Span span = ROTATE_270.start();
     // Rotates the picture 270 degrees clockwise
     // Returns a picture after rotation
-    Picture out = new Picture(getHeight(), getWidth());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        out.setPixel(y, getWidth() - x - 1, getPixel(x, y));
-      }
-    }
-    return out;
+    int width = getWidth();
+    int height = getHeight();
+    checkDestination(dst, height, width, false);
+    // (x, y) moves to (y, width - x - 1) in a picture that is height wide
+    Rotation.rotate270(pixels, dst.writablePixels(), width, height);
+    span.stop(width, height);
+    return dst;
   }
 
   public Picture flipHorizontal() {
+    return flipHorizontal(new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Flip this picture horizontally into dst.
+   *
+   * @param dst a picture with the same dimensions as this one, other than this
+   *            picture.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions or is
+   *                                  this picture.
+   */
+  public Picture flipHorizontal(Picture dst) {
+    OperationStats.Span span = FLIP_HORIZONTAL.start();
     // Flips the picture horizontally
-    Picture out = new Picture(getWidth(), getHeight());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        out.setPixel(x, y, getPixel(getWidth() - x - 1, y));
+    int width = getWidth();
+    checkDestination(dst, width, getHeight(), false);
+    int[] src = pixels;
+    int[] out = dst.writablePixels();
+    RowBands.forEach(width, getHeight(), (fromRow, toRow) -> {
+      for (int y = fromRow; y < toRow; y++) {
+        int row = y * width;
+        int last = row + width - 1;
+        for (int x = 0; x < width; x++) {
+          out[row + x] = src[last - x];
+        }
       }
-    }
-    return out;
+    });
+    span.stop(width, getHeight());
+    return dst;
+  }
+
+  public void flipHorizontalInPlace() {
+    OperationStats.Span span = FLIP_HORIZONTAL.start();
+    int width = getWidth();
+    int[] data = writablePixels();
+    RowBands.forEach(width, getHeight(), (fromRow, toRow) -> {
+      for (int y = fromRow; y < toRow; y++) {
+        int row = y * width;
+        int last = row + width - 1;
+        for (int x = 0; x < width / 2; x++) {
+          int swap = data[row + x];
+          data[row + x] = data[last - x];
+          data[last - x] = swap;
+        }
+      }
+    });
+    span.stop(width, getHeight());
   }
 
   public Picture flipVertical() {
+    return flipVertical(new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Flip this picture vertically into dst.
+   *
+   * @param dst a picture with the same dimensions as this one, other than this
+   *            picture.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions or is
+   *                                  this picture.
+   */
+  public Picture flipVertical(Picture dst) {
+    OperationStats.Span span = FLIP_VERTICAL.start();
     // Flips the picture vertically
-    Picture out = new Picture(getWidth(), getHeight());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        out.setPixel(x, y, this.getPixel(x, getHeight() - y - 1));
+    int width = getWidth();
+    int height = getHeight();
+    checkDestination(dst, width, height, false);
+    int[] src = pixels;
+    int[] out = dst.writablePixels();
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      for (int y = fromRow; y < toRow; y++) {
+        System.arraycopy(src, (height - y - 1) * width, out, y * width, width);
       }
-    }
-    return out;
+    });
+    span.stop(width, height);
+    return dst;
+  }
+
+  public void flipVerticalInPlace() {
+    OperationStats.Span span = FLIP_VERTICAL.start();
+    // Swaps each row in the top half with its mirror row in the bottom half
+    int width = getWidth();
+    int height = getHeight();
+    int[] data = writablePixels();
+    RowBands.forEach(width, height / 2, (fromRow, toRow) -> {
+      int[] swap = new int[width];
+      for (int y = fromRow; y < toRow; y++) {
+        int top = y * width;
+        int bottom = (height - y - 1) * width;
+        System.arraycopy(data, top, swap, 0, width);
+        System.arraycopy(data, bottom, data, top, width);
+        System.arraycopy(swap, 0, data, bottom, width);
+      }
+    });
+    span.stop(width, height);
   }
 
   public static Picture blend(List<Picture> inputs) {
+    OperationStats.Span span = BLEND.start();
     // Blends all the pictures in a list of pictures by getting the average
     // pixel values.
 
@@ -295,60 +817,330 @@ public class Picture {
     int numPictures = inputs.size();
     // Creates output picture
     Picture out = new Picture(minWidth, minHeight);
-    Color pixel;
-    for (int x = 0; x < minWidth; x++) {
-      for (int y = 0; y < minHeight; y++) {
-        int totalRed = 0;
-        int totalGreen = 0;
-        int totalBlue = 0;
+    int[] dst = out.pixels;
+    PointKernels kernels = PointKernels.get();
+    RowBands.forEach(minWidth, minHeight, (fromRow, toRow) -> {
+      // Per-channel running totals for one row of the output
+      int[] totalRed = new int[minWidth];
+      int[] totalGreen = new int[minWidth];
+      int[] totalBlue = new int[minWidth];
+      for (int y = fromRow; y < toRow; y++) {
+        Arrays.fill(totalRed, 0);
+        Arrays.fill(totalGreen, 0);
+        Arrays.fill(totalBlue, 0);
         for (Picture picture : inputs) {
-          pixel = picture.getPixel(x, y);
-          totalRed += pixel.getRed();
-          totalGreen += pixel.getGreen();
-          totalBlue += pixel.getBlue();
+          kernels.accumulate(picture.pixels, y * picture.getWidth(),
+              totalRed, totalGreen, totalBlue, minWidth);
         }
-        Color avg = new Color(totalRed / numPictures,
-            totalGreen / numPictures, totalBlue / numPictures);
-        out.setPixel(x, y, avg);
+        kernels.average(totalRed, totalGreen, totalBlue, numPictures,
+            dst, y * minWidth, minWidth);
       }
+    });
+    span.stop(minWidth, minHeight);
+    return out;
+  }
+
+  /**
+   * Blend the images in the specified files like {@link #blend(List)}, but
+   * decode them one at a time so that only one input is ever held in memory.
+   *
+   * @param filepaths the image files to blend.
+   * @return the average of the images, cropped to the smallest of them.
+   */
+  public static Picture blendFiles(List<String> filepaths) {
+    return blendFiles(filepaths, Collections.nCopies(filepaths.size(), 1));
+  }
+
+  /**
+   * Blend the images in the specified files, decoding them one at a time.
+   * Each channel of the output is the weighted total of that channel over the
+   * inputs divided by the total weight, rounded down.
+   *
+   * @param filepaths the image files to blend.
+   * @param weights   the weight of each file, in the same order.
+   * @return the weighted average of the images, cropped to the smallest of
+   *     them.
+   * @throws IllegalArgumentException if there is not one weight per file.
+   */
+  public static Picture blendFiles(List<String> filepaths, List<Integer> weights) {
+    if (filepaths.size() != weights.size()) {
+      throw new IllegalArgumentException("Expected " + filepaths.size()
+          + " weights but got " + weights.size());
+    }
+    // The headers give the output dimensions before any input is decoded
+    int minWidth = Integer.MAX_VALUE;
+    int minHeight = Integer.MAX_VALUE;
+    for (String filepath : filepaths) {
+      Dimension dimensions = readDimensions(filepath);
+      minWidth = Math.min(minWidth, dimensions.width);
+      minHeight = Math.min(minHeight, dimensions.height);
+    }
+    OperationStats.Span span = BLEND.start();
+    BlendAccumulator accumulator = new BlendAccumulator(minWidth, minHeight);
+    for (int i = 0; i < filepaths.size(); i++) {
+      accumulator.add(new Picture(filepaths.get(i)), weights.get(i));
     }
+    Picture out = accumulator.result();
+    span.stop(minWidth, minHeight);
     return out;
   }
 
   public Picture blur() {
-    // Blurs the picture
+    // Blurs the picture by averaging each pixel with its 8 neighbours.
+    // Pixels at the borders are unchanged.
+    return blur(1, BorderMode.KEEP);
+  }
+
+  /**
+   * Blur the picture by averaging each pixel with every pixel at most
+   * <tt>radius</tt> away from it horizontally and vertically. Pixels within
+   * <tt>radius</tt> of the border are left unchanged.
+   *
+   * @param radius the radius of the square averaged for each pixel.
+   * @return the blurred picture.
+   * @throws IllegalArgumentException if radius is negative or more than 1449.
+   */
+  public Picture blur(int radius) {
+    return blur(radius, BorderMode.KEEP);
+  }
+
+  /**
+   * Blur the picture by averaging each pixel with every pixel at most
+   * <tt>radius</tt> away from it horizontally and vertically. The cost per
+   * pixel is the same for any radius.
+   *
+   * @param radius the radius of the square averaged for each pixel.
+   * @param border how neighbours outside the picture are treated.
+   * @return the blurred picture.
+   * @throws IllegalArgumentException if radius is negative or more than 1449.
+   */
+  public Picture blur(int radius, BorderMode border) {
+    return blur(radius, border, new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Blur the picture like {@link #blur(int, BorderMode)}, writing the result
+   * into dst.
+   *
+   * @param radius the radius of the square averaged for each pixel.
+   * @param border how neighbours outside the picture are treated.
+   * @param dst    a picture with the same dimensions as this one, other than
+   *               this picture.
+   * @return dst.
+   * @throws IllegalArgumentException if radius is negative or more than
+   *                                  1449, or dst has different dimensions or
+   *                                  is this picture.
+   */
+  public Picture blur(int radius, BorderMode border, Picture dst) {
+    OperationStats.Span span = BLUR.start();
+    checkDestination(dst, getWidth(), getHeight(), false);
+    Blur.box(pixels, dst.writablePixels(), getWidth(), getHeight(), radius, border);
+    span.stop(getWidth(), getHeight());
+    return dst;
+  }
+
+  /**
+   * Blur the picture with an approximate Gaussian of standard deviation
+   * <tt>sigma</tt>, computed as three successive box blurs.
+   *
+   * @param sigma  the standard deviation of the Gaussian, in pixels.
+   * @param border how neighbours outside the picture are treated.
+   * @return the blurred picture.
+   * @throws IllegalArgumentException if sigma is not positive, or so large
+   *                                  that a box blur radius exceeds 1449.
+   */
+  public Picture gaussianBlur(double sigma, BorderMode border) {
+    OperationStats.Span span = GAUSSIAN_BLUR.start();
     Picture out = new Picture(getWidth(), getHeight());
-    Color pixel;
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        // Checks if pixel is at the border
-        if (x > 0 && x < getWidth() - 1 && y > 0 && y < getHeight() - 1) {
-          int totalRed = 0;
-          int totalGreen = 0;
-          int totalBlue = 0;
-          // Computes the average pixel values of neighbouring pixels
-          // including the pixel itself
-          for (int dx = -1; dx <= 1; dx++) {
-            for (int dy = -1; dy <= 1; dy++) {
-              pixel = getPixel(x + dx, y + dy);
-              totalRed += pixel.getRed();
-              totalGreen += pixel.getGreen();
-              totalBlue += pixel.getBlue();
-            }
+    Blur.gaussian(pixels, out.pixels, getWidth(), getHeight(), sigma, border);
+    span.stop(getWidth(), getHeight());
+    return out;
+  }
+
+  /**
+   * Resample the picture to width by height pixels.
+   *
+   * @param width  the width of the result.
+   * @param height the height of the result.
+   * @param filter how each output pixel is computed from the input pixels
+   *               around it.
+   * @return the resized picture.
+   * @throws IllegalArgumentException if width or height is not positive.
+   */
+  public Picture resize(int width, int height, ResizeFilter filter) {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("Size must be positive: " + width + "x" + height);
+    }
+    OperationStats.Span span = RESIZE.start();
+    Picture out = new Picture(width, height);
+    Resize.resize(pixels, getWidth(), getHeight(), out.pixels, width, height, filter);
+    span.stop(getWidth(), getHeight());
+    return out;
+  }
+
+  /**
+   * Resample the picture to every one of sizes, such as the thumbnails of an
+   * upload. Rather than shrinking the whole picture once per size, each size
+   * is resampled from the smallest level of a pyramid of halvings that is
+   * still at least twice as large in both dimensions. Each level is an area
+   * average of the one before, built once and shared by every size that
+   * needs it, so each smaller size costs a fraction of a pass over the
+   * picture.
+   *
+   * @param sizes  the dimensions of the results.
+   * @param filter how each output pixel is computed from the input pixels
+   *               around it.
+   * @return the resized pictures, in the same order as sizes.
+   * @throws IllegalArgumentException if any width or height is not positive.
+   */
+  public List<Picture> resize(List<Dimension> sizes, ResizeFilter filter) {
+    List<Picture> levels = new ArrayList<>(List.of(this));
+    List<Picture> outputs = new ArrayList<>();
+    for (Dimension size : sizes) {
+      Picture level = this;
+      if (filter != ResizeFilter.NEAREST) {
+        // Nearest reads one input pixel whatever the scale, so gains nothing
+        int depth = 0;
+        while (true) {
+          Picture current = levels.get(depth);
+          int halfWidth = current.getWidth() / 2;
+          int halfHeight = current.getHeight() / 2;
+          if (halfWidth < 2 * size.width || halfHeight < 2 * size.height) {
+            break;
+          }
+          if (depth + 1 == levels.size()) {
+            levels.add(current.resize(halfWidth, halfHeight, ResizeFilter.AREA));
           }
-          Color avg = new Color(totalRed / 9,
-              totalGreen / 9, totalBlue / 9);
-          // Sets the pixel color to the average
-          out.setPixel(x, y, avg);
-        } else { // Pixel at the borders are unchanged
-          out.setPixel(x, y, getPixel(x, y));
+          depth++;
         }
+        level = levels.get(depth);
       }
+      outputs.add(level.resize(size.width, size.height, filter));
     }
-    return out;
+    return outputs;
+  }
+
+  /**
+   * Convolve the picture with kernel. Box kernels cost the same per pixel
+   * whatever their size, and separable kernels cost their width plus their
+   * height rather than their area.
+   *
+   * @param kernel the weights applied around each pixel.
+   * @param border how neighbours outside the picture are treated. With KEEP,
+   *               pixels within half the kernel of the border are unchanged.
+   * @return the convolved picture.
+   */
+  public Picture convolve(Kernel kernel, BorderMode border) {
+    return convolve(kernel, border, new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Convolve the picture like {@link #convolve(Kernel, BorderMode)}, writing
+   * the result into dst.
+   *
+   * @param kernel the weights applied around each pixel.
+   * @param border how neighbours outside the picture are treated.
+   * @param dst    a picture with the same dimensions as this one, other than
+   *               this picture.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions or is
+   *                                  this picture.
+   */
+  public Picture convolve(Kernel kernel, BorderMode border, Picture dst) {
+    OperationStats.Span span = CONVOLVE.start();
+    checkDestination(dst, getWidth(), getHeight(), false);
+    Convolution.convolve(pixels, dst.writablePixels(), getWidth(), getHeight(), kernel, border);
+    span.stop(getWidth(), getHeight());
+    return dst;
+  }
+
+  /**
+   * Compute the histogram of every channel of this picture, and the statistics
+   * derived from it, in one pass over the pixels.
+   */
+  public PictureStatistics statistics() {
+    OperationStats.Span span = STATISTICS.start();
+    PictureStatistics statistics = PictureStatistics.of(this);
+    span.stop(getWidth(), getHeight());
+    return statistics;
+  }
+
+  public Picture autoLevels() {
+    return autoLevels(new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Stretch each channel of this picture into dst, which may be this picture,
+   * so that its lowest level becomes 0 and its highest 255.
+   *
+   * @param dst a picture with the same dimensions as this one.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions.
+   */
+  public Picture autoLevels(Picture dst) {
+    OperationStats.Span span = AUTO_LEVELS.start();
+    checkDestination(dst, getWidth(), getHeight(), true);
+    PictureStatistics statistics = PictureStatistics.of(this);
+    applyLevels(statistics::stretch, dst);
+    span.stop(getWidth(), getHeight());
+    return dst;
+  }
+
+  public Picture equalize() {
+    return equalize(new Picture(getWidth(), getHeight()));
+  }
+
+  /**
+   * Equalize the histogram of each channel of this picture into dst, which
+   * may be this picture, so that its levels are spread as evenly as possible
+   * from 0 to 255.
+   *
+   * @param dst a picture with the same dimensions as this one.
+   * @return dst.
+   * @throws IllegalArgumentException if dst has different dimensions.
+   */
+  public Picture equalize(Picture dst) {
+    OperationStats.Span span = EQUALIZE.start();
+    checkDestination(dst, getWidth(), getHeight(), true);
+    PictureStatistics statistics = PictureStatistics.of(this);
+    applyLevels(statistics::equalize, dst);
+    span.stop(getWidth(), getHeight());
+    return dst;
+  }
+
+  /**
+   * Map every channel of this picture into dst through the lookup table that
+   * tables gives for it.
+   */
+  private void applyLevels(
+      Function<PictureStatistics.Channel, int[]> tables, Picture dst) {
+    // Each table holds its levels already shifted into place, so a pixel is
+    // three lookups or'ed together
+    int[][] shifted = new int[3][];
+    for (PictureStatistics.Channel channel : PictureStatistics.Channel.values()) {
+      int[] table = tables.apply(channel);
+      int[] packed = new int[PictureStatistics.LEVELS];
+      for (int level = 0; level < packed.length; level++) {
+        packed[level] = channel.pack(table[level]);
+      }
+      shifted[channel.ordinal()] = packed;
+    }
+    int[] red = shifted[0];
+    int[] green = shifted[1];
+    int[] blue = shifted[2];
+    int width = getWidth();
+    int[] src = pixels;
+    int[] out = dst.writablePixels();
+    RowBands.forEach(width, getHeight(), (fromRow, toRow) -> {
+      for (int i = fromRow * width; i < toRow * width; i++) {
+        int rgb = src[i];
+        out[i] = red[red(rgb)] | green[green(rgb)] | blue[blue(rgb)];
+      }
+    });
   }
 
   public static Picture mosaic(List<Picture> inputs, int tileSize) {
+    OperationStats.Span span = MOSAIC.start();
     // Creates a mosaic from a list of pictures
     // Obtains output dimensions
     // Dimensions have to be a multiple of the tile size
@@ -359,15 +1151,134 @@ public class Picture {
     minHeight = minHeight - minHeight % tileSize;
 
     Picture output = new Picture(minWidth, minHeight);
+    int[] dst = output.pixels;
+    int outWidth = minWidth;
 
     int numPictures = inputs.size();
-    for (int x = 0; x < minWidth; x++) {
-      for (int y = 0; y < minHeight; y++) {
-        int currentIndex = (x / tileSize + y / tileSize) % numPictures;
-        Picture currentPicture = inputs.get(currentIndex);
-        output.setPixel(x, y, currentPicture.getPixel(x, y));
+    RowBands.forEach(minWidth, minHeight, (fromRow, toRow) -> {
+      for (int y = fromRow; y < toRow; y++) {
+        int tileRow = y / tileSize;
+        for (int x = 0; x < outWidth; x += tileSize) {
+          // Each row of a tile is one contiguous span of a row of its source
+          Picture source = inputs.get((x / tileSize + tileRow) % numPictures);
+          System.arraycopy(source.pixels, y * source.getWidth() + x,
+              dst, y * outWidth + x, tileSize);
+        }
       }
+    });
+    span.stop(minWidth, minHeight);
+    return output;
+  }
+
+  /**
+   * Create the same mosaic as {@link #mosaic(List, int)} from image files,
+   * without loading them all. Each file is decoded only as far as the last
+   * row of the mosaic, one row at a time where the format allows, and only
+   * its own tiles are copied out. Files are decoded in parallel when
+   * parallelism is enabled.
+   *
+   * @param filepaths the images to take tiles from, in order.
+   * @param tileSize  the side of each square tile, in pixels.
+   * @return the mosaic.
+   */
+  public static Picture mosaicFiles(List<String> filepaths, int tileSize) {
+    OperationStats.Span span = MOSAIC.start();
+    int minWidth = Integer.MAX_VALUE;
+    int minHeight = Integer.MAX_VALUE;
+    for (String filepath : filepaths) {
+      Dimension dimensions = readDimensions(filepath);
+      minWidth = Math.min(minWidth, dimensions.width);
+      minHeight = Math.min(minHeight, dimensions.height);
     }
+    minWidth -= minWidth % tileSize;
+    minHeight -= minHeight % tileSize;
+    Picture output = new Picture(minWidth, minHeight);
+    // Every file fills its own tiles, so files are split between threads
+    // like rows, each costing about one mosaic's worth of decoding
+    RowBands.forEach(minWidth * minHeight, filepaths.size(), (from, to) -> {
+      for (int i = from; i < to; i++) {
+        try {
+          output.copyTiles(filepaths.get(i), i, filepaths.size(), tileSize);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    span.stop(minWidth, minHeight);
     return output;
   }
+
+  /**
+   * Copy the tiles of this mosaic that come from input number index into
+   * place, decoding filepath row by row when it is a PNG that PngCodec reads.
+   */
+  private void copyTiles(String filepath, int index, int numPictures,
+      int tileSize) throws IOException {
+    int width = getWidth();
+    int height = getHeight();
+    try (InputStream in = new BufferedInputStream(
+        new FileInputStream(filepath), 1 << 16)) {
+      // Anything but a PNG is decoded below through ImageIO instead, but
+      // a PNG whose header cannot be read is an error
+      if (PngCodec.hasSignature(in)) {
+        try (PngCodec.RowReader rows = new PngCodec.RowReader(in)) {
+          if (rows.isStreamable()) {
+            int[] row = new int[rows.getWidth()];
+            for (int y = 0; y < height; y++) {
+              rows.readRows(row, 1);
+              copyTileRows(row, rows.getWidth(), y, y + 1, index,
+                  numPictures, tileSize);
+            }
+            return;
+          }
+        }
+      }
+    }
+    Picture region = new Picture(readRegion(filepath, width, height));
+    copyTileRows(region.pixels, width, 0, height, index, numPictures,
+        tileSize);
+  }
+
+  /**
+   * Copy the spans of rows [fromRow, toRow) of src that belong to tiles of
+   * input number index into this mosaic. Row y of the mosaic starts at
+   * src[(y - fromRow) * srcWidth].
+   */
+  private void copyTileRows(int[] src, int srcWidth, int fromRow, int toRow,
+      int index, int numPictures, int tileSize) {
+    int width = getWidth();
+    int tilesAcross = width / tileSize;
+    for (int y = fromRow; y < toRow; y++) {
+      // The first tile in this row from input index, then every numPictures
+      int first = Math.floorMod(index - y / tileSize, numPictures);
+      int start = (y - fromRow) * srcWidth;
+      for (int tile = first; tile < tilesAcross; tile += numPictures) {
+        System.arraycopy(src, start + tile * tileSize, pixels,
+            y * width + tile * tileSize, tileSize);
+      }
+    }
+  }
+
+  /**
+   * Decode only the top-left width by height pixels of the image in
+   * filepath.
+   */
+  private static BufferedImage readRegion(String filepath, int width,
+      int height) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(new File(filepath))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        throw new IOException("Unsupported image format: " + filepath);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, 0, width, height));
+        return PictureIO.toIntRgb(reader.read(0, param));
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
 }
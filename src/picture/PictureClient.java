@@ -0,0 +1,141 @@
+package picture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * A client for {@link PictureServer} that takes the same arguments as {@link PictureProcessor},
+ * so that scripts can switch to a running server by changing only the class they call.
+ *
+ * <p>Format: <tt>[--port N | --socket path] [--stream] operation args...</tt>. By default the
+ * server reads and writes the files itself. With <tt>--stream</tt>, every argument that names an
+ * existing file is sent as bytes, and the output is sent back and written here.
+ */
+public class PictureClient implements Closeable {
+
+  private final SocketChannel channel;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  /**
+   * Connect to a server at address, which is either an InetSocketAddress or a
+   * UnixDomainSocketAddress.
+   */
+  public PictureClient(SocketAddress address) throws IOException {
+    channel = address instanceof UnixDomainSocketAddress
+        ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+    channel.connect(address);
+    in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+  }
+
+  public static void main(String[] args) {
+    SocketAddress address =
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), PictureServer.DEFAULT_PORT);
+    boolean stream = false;
+    int start = 0;
+    while (start < args.length && args[start].startsWith("--")) {
+      switch (args[start]) {
+        case "--port" -> {
+          address = new InetSocketAddress(
+              InetAddress.getLoopbackAddress(), Integer.parseInt(args[start + 1]));
+          start += 2;
+        }
+        case "--socket" -> {
+          address = UnixDomainSocketAddress.of(args[start + 1]);
+          start += 2;
+        }
+        case "--stream" -> {
+          stream = true;
+          start++;
+        }
+        default -> {
+          System.out.println("Unknown option " + args[start]);
+          return;
+        }
+      }
+    }
+    try (PictureClient client = new PictureClient(address)) {
+      String[] request = Arrays.copyOfRange(args, start, args.length);
+      String status = stream ? client.executeStreaming(request) : client.execute(request);
+      if (!status.equals("OK")) {
+        System.out.println(status);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Run a request on files that the server reads and writes itself. Relative paths are resolved
+   * against this process's working directory first.
+   *
+   * @param args the same arguments as {@link PictureProcessor#main(String[])}.
+   * @return the status returned by the server.
+   */
+  public String execute(String[] args) throws IOException {
+    String[] request = args.clone();
+    for (int i = 1; i < request.length; i++) {
+      if (i == request.length - 1 || Files.exists(Paths.get(request[i]))) {
+        request[i] = PictureServer.absolute(request[i]);
+      }
+    }
+    PictureServer.writeArgs(out, request);
+    out.flush();
+    return in.readUTF();
+  }
+
+  /**
+   * Run a request, sending the bytes of every existing input file and writing the output
+   * returned by the server to the last argument.
+   *
+   * @param args the same arguments as {@link PictureProcessor#main(String[])}.
+   * @return the status returned by the server.
+   */
+  public String executeStreaming(String[] args) throws IOException {
+    String[] request = args.clone();
+    Path output = Paths.get(request[request.length - 1]);
+    request[request.length - 1] = PictureServer.STREAM;
+    byte[][] inputs = new byte[request.length][];
+    for (int i = 1; i < request.length - 1; i++) {
+      Path input = Paths.get(request[i]);
+      if (Files.isRegularFile(input)) {
+        inputs[i] = Files.readAllBytes(input);
+        request[i] = PictureServer.STREAM;
+      }
+    }
+    PictureServer.writeArgs(out, request);
+    for (byte[] input : inputs) {
+      if (input != null) {
+        PictureServer.writeBytes(out, input);
+      }
+    }
+    out.flush();
+    String status = in.readUTF();
+    if (status.equals("OK")) {
+      Files.write(output, PictureServer.readBytes(in));
+    }
+    return status;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,22 @@
+package picture;
+
+import java.awt.Rectangle;
+
+/**
+ * The differences between two pictures of the same dimensions, as returned by
+ * {@link Picture#diff(Picture)}.
+ *
+ * @param mismatches the number of pixels that differ.
+ * @param firstX     the x-coordinate of the first differing pixel in row-major order, or -1.
+ * @param firstY     the y-coordinate of the first differing pixel in row-major order, or -1.
+ * @param bounds     the smallest rectangle holding every differing pixel, empty if there are none.
+ */
+public record PictureDiff(long mismatches, int firstX, int firstY, Rectangle bounds) {
+
+  /**
+   * Returns true if the pictures have no differing pixels.
+   */
+  public boolean identical() {
+    return mismatches == 0;
+  }
+}
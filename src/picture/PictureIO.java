@@ -0,0 +1,187 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+/**
+ * Reading and writing pictures as PNGs from paths, streams and byte arrays. ImageIO is set not to
+ * cache streams in temporary files, so everything happens in memory.
+ *
+ * <p>8-bit non-interlaced PNGs are decoded straight into the packed pixel array by
+ * {@link PngCodec}, and other images through ImageIO. Pictures are always encoded by PngCodec,
+ * which deflates blocks of rows in parallel when {@link Picture#setParallelism} allows. The
+ * deflate level trades speed for size: on photos {@link #FASTEST} is over ten times quicker
+ * than {@link #SMALLEST}, for files about a third larger.
+ */
+public final class PictureIO {
+
+  public static final int FASTEST = Deflater.BEST_SPEED;
+
+  public static final int SMALLEST = Deflater.BEST_COMPRESSION;
+
+  /**
+   * The level used unless another is set, the same as ImageIO's PNG writer uses. It is close to
+   * FASTEST in speed and to the deflate default in size.
+   */
+  public static final int DEFAULT = 4;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Longer than the signature and header chunk that are read before falling back to ImageIO.
+   */
+  private static final int HEADER_LIMIT = 64;
+
+  private static final OperationStats DECODE = Metrics.operation("decode");
+  private static final OperationStats ENCODE = Metrics.operation("encode");
+
+  private static volatile int defaultLevel = DEFAULT;
+
+  static {
+    ImageIO.setUseCache(false);
+  }
+
+  private PictureIO() {
+  }
+
+  /**
+   * Set the deflate level used when none is given, from 0 (no compression) to 9, or -1 for the
+   * deflate default.
+   */
+  public static void setDefaultLevel(int level) {
+    checkLevel(level);
+    defaultLevel = level;
+  }
+
+  public static int getDefaultLevel() {
+    return defaultLevel;
+  }
+
+  public static Picture read(Path path) throws IOException {
+    return new Picture(readImage(path));
+  }
+
+  /**
+   * Read a picture from in, leaving in open.
+   */
+  public static Picture read(InputStream in) throws IOException {
+    return new Picture(readImage(in, "stream"));
+  }
+
+  public static Picture read(byte[] bytes) throws IOException {
+    return read(new ByteArrayInputStream(bytes));
+  }
+
+  public static void write(Picture picture, Path path) throws IOException {
+    write(picture, path, defaultLevel);
+  }
+
+  public static void write(Picture picture, Path path, int level) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE)) {
+      write(picture, out, level);
+    }
+  }
+
+  /**
+   * Write picture as a PNG to out at the given deflate level, leaving out open.
+   */
+  public static void write(Picture picture, OutputStream out, int level) throws IOException {
+    checkLevel(level);
+    OperationStats.Span span = ENCODE.start();
+    PngCodec.encode(picture.dataForReading(), picture.getWidth(), picture.getHeight(), level,
+        out);
+    span.stop(picture.getWidth(), picture.getHeight());
+  }
+
+  public static byte[] toBytes(Picture picture, int level) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(picture, out, level);
+    return out.toByteArray();
+  }
+
+  static BufferedImage readImage(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      return readImage(in, path.toString());
+    }
+  }
+
+  /**
+   * Decode the image in in as TYPE_INT_RGB, naming it name in errors.
+   */
+  private static BufferedImage readImage(InputStream in, String name) throws IOException {
+    OperationStats.Span span = DECODE.start();
+    BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+    buffered.mark(HEADER_LIMIT);
+    BufferedImage image = readPng(buffered);
+    if (image == null) {
+      buffered.reset();
+      BufferedImage loaded = ImageIO.read(buffered);
+      if (loaded == null) {
+        throw new IOException("Unsupported image format: " + name);
+      }
+      image = toIntRgb(loaded);
+    }
+    span.stop(image.getWidth(), image.getHeight());
+    return image;
+  }
+
+  /**
+   * Returns the PNG in in decoded by PngCodec, or null if it is not a PNG that PngCodec reads.
+   */
+  private static BufferedImage readPng(InputStream in) throws IOException {
+    PngCodec.RowReader reader;
+    try {
+      reader = new PngCodec.RowReader(in);
+    } catch (IOException e) {
+      return null;
+    }
+    if (!reader.isStreamable()) {
+      return null;
+    }
+    try {
+      BufferedImage image = new BufferedImage(reader.getWidth(), reader.getHeight(),
+          BufferedImage.TYPE_INT_RGB);
+      reader.readRows(((DataBufferInt) image.getRaster().getDataBuffer()).getData(),
+          reader.getHeight());
+      return image;
+    } finally {
+      reader.end();
+    }
+  }
+
+  /**
+   * Returns image as TYPE_INT_RGB, converting it once if it is any other type so that every
+   * operation can work directly on the packed pixel array.
+   */
+  static BufferedImage toIntRgb(BufferedImage image) {
+    if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+      return image;
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    BufferedImage converted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] data = ((DataBufferInt) converted.getRaster().getDataBuffer()).getData();
+    image.getRGB(0, 0, width, height, data, 0, width);
+    for (int i = 0; i < data.length; i++) {
+      data[i] &= 0xffffff;
+    }
+    return converted;
+  }
+
+  private static void checkLevel(int level) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > SMALLEST) {
+      throw new IllegalArgumentException("Deflate level must be -1 or 0 to 9: " + level);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package picture;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of pictures, bucketed by their dimensions, for callers that process many
+ * pictures of the same sizes. Pictures acquired from the pool are used as destinations of
+ * operations such as {@link Picture#rotate90(Picture)} and released when no longer needed, so
+ * that in a steady state no new pixel buffers are allocated.
+ *
+ * <p>Acquired pictures hold whatever pixels they held when released. The pool holds at most
+ * maxBytes of pixel data; pictures released beyond that are left to the garbage collector.
+ */
+public class PicturePool {
+
+  private final long maxBytes;
+  private final Map<Long, ArrayDeque<Picture>> buckets = new HashMap<>();
+  private long pooledBytes;
+  private long hits;
+  private long misses;
+
+  /**
+   * Construct an empty pool that holds at most maxBytes of pixel data.
+   */
+  public PicturePool(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  private static long key(int width, int height) {
+    return ((long) width << 32) | (height & 0xffffffffL);
+  }
+
+  private static long bytes(Picture picture) {
+    return 4L * picture.getWidth() * picture.getHeight();
+  }
+
+  /**
+   * Returns a width by height picture, reusing a released one if there is one.
+   */
+  public Picture acquire(int width, int height) {
+    synchronized (this) {
+      ArrayDeque<Picture> bucket = buckets.get(key(width, height));
+      if (bucket != null && !bucket.isEmpty()) {
+        Picture picture = bucket.pop();
+        pooledBytes -= bytes(picture);
+        hits++;
+        return picture;
+      }
+      misses++;
+    }
+    return new Picture(width, height);
+  }
+
+  /**
+   * Return picture to the pool. The caller must not use picture afterwards.
+   */
+  public synchronized void release(Picture picture) {
+    long size = bytes(picture);
+    if (pooledBytes + size > maxBytes) {
+      return;
+    }
+    buckets.computeIfAbsent(key(picture.getWidth(), picture.getHeight()),
+        key -> new ArrayDeque<>()).push(picture);
+    pooledBytes += size;
+  }
+
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  /**
+   * Returns the number of acquires served from the pool.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of acquires that had to allocate a new picture.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Drop every pooled picture.
+   */
+  public synchronized void clear() {
+    buckets.clear();
+    pooledBytes = 0;
+  }
+}
@@ -1,10 +1,234 @@
 package picture;
 
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 public class PictureProcessor {
+
+  /**
+   * The operations understood by {@link #run(String[])}.
+   */
+  static final Set<String> COMMANDS = Set.of("invert", "grayscale", "rotate",
+      "flip", "blend", "blur", "gaussian", "pipeline", "batch", "serve", "mosaic",
+      "raw", "sequence", "stats", "autolevels", "equalize", "convolve", "resize");
+
+  /**
+   * The commands that can run in strips through {@link RawPicture} when they need more memory
+   * than the whole budget.
+   */
+  private static final Set<String> STRIP_COMMANDS =
+      Set.of("invert", "grayscale", "rotate", "flip", "blur");
+
+  /**
+   * The most commands that wait for memory when a budget is set with --memory-mb.
+   */
+  private static final int MEMORY_QUEUE = 64;
+
+  /**
+   * The cache of results, or null if every command is computed afresh.
+   */
+  private static volatile ResultCache cache;
+
+  /**
+   * The governor that commands are admitted by, or null if memory is not budgeted.
+   */
+  private static volatile MemoryGovernor governor;
+
   public static void main(String[] args) {
+    // Options such as --threads N come before the operation name
+    int start = 0;
+    boolean stats = false;
+    long cacheBytes = 0;
+    Path cacheDirectory = null;
+    while (start < args.length && args[start].startsWith("--")) {
+      switch (args[start]) {
+        case "--threads" -> {
+          Picture.setParallelism(Integer.parseInt(args[start + 1]));
+          start += 2;
+        }
+        case "--stats" -> {
+          stats = true;
+          start++;
+        }
+        case "--level" -> {
+          PictureIO.setDefaultLevel(Integer.parseInt(args[start + 1]));
+          start += 2;
+        }
+        case "--cache-mb" -> {
+          cacheBytes = Long.parseLong(args[start + 1]) << 20;
+          start += 2;
+        }
+        case "--cache-dir" -> {
+          cacheDirectory = Paths.get(args[start + 1]);
+          start += 2;
+        }
+        case "--memory-mb" -> {
+          governor = new MemoryGovernor(Long.parseLong(args[start + 1]) << 20, MEMORY_QUEUE);
+          start += 2;
+        }
+        default -> {
+          System.out.println("Unknown option " + args[start]);
+          return;
+        }
+      }
+    }
+    if (cacheBytes > 0 || cacheDirectory != null) {
+      try {
+        cache = new ResultCache(cacheBytes, cacheDirectory);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    try {
+      run(Arrays.copyOfRange(args, start, args.length));
+    } catch (UsageException e) {
+      // Usage errors are reported as a message rather than as a stack trace
+      System.err.println(e.getMessage());
+      return;
+    }
+    if (stats) {
+      System.out.println(Metrics.summary());
+      if (cache != null) {
+        System.out.println(cache);
+      }
+      if (governor != null) {
+        System.out.println(governor);
+      }
+    }
+  }
+
+  /**
+   * Use cache for the results of single-input commands, or no cache if it is
+   * null.
+   */
+  static void setCache(ResultCache cache) {
+    PictureProcessor.cache = cache;
+  }
+
+  /**
+   * Admit commands by governor, or run them without a memory budget if it is null.
+   */
+  static void setGovernor(MemoryGovernor governor) {
+    PictureProcessor.governor = governor;
+  }
+
+  /**
+   * Run the operation named by args[0] on the files given by the remaining
+   * arguments, with the same format as {@link #main(String[])} after any
+   * options.
+   */
+  static void run(String[] args) {
+    OperationStats.Span span = COMMANDS.contains(args[0])
+        ? Metrics.operation("command " + args[0]).start() : null;
+    MemoryGovernor currentGovernor = governor;
+    // The header of the input is read once, for both the estimate and the metrics
+    Dimension input = currentGovernor != null || (span != null && Metrics.isEnabled())
+        ? MemoryGovernor.inputDimensions(args) : null;
+    try {
+      if (currentGovernor == null) {
+        compute(args);
+      } else {
+        runAdmitted(currentGovernor, args, input);
+      }
+    } finally {
+      if (span != null) {
+        span.stop(input == null ? 0 : input.width, input == null ? 0 : input.height);
+      }
+    }
+  }
+
+  /**
+   * Run a command once governor admits its estimated footprint. A command that needs more than
+   * the whole budget is run in smaller strips if it works in strips or can be, taking half the
+   * budget so that others can still run beside it. A batch or sequence is run with fewer files in
+   * flight. Anything else is rejected. input is the dimensions of its input, or null if unknown.
+   */
+  private static void runAdmitted(MemoryGovernor governor, String[] args, Dimension input) {
+    long budget = governor.getBudget();
+    long bytes = MemoryGovernor.estimate(args, input);
+    Runnable job = () -> compute(args);
+    if (bytes > budget && (STRIP_COMMANDS.contains(args[0]) || args[0].equals("raw"))) {
+      bytes = budget / 2;
+      int stripPixels = (int) Math.max(1,
+          Math.min(Integer.MAX_VALUE, bytes / MemoryGovernor.STRIP_BYTES_PER_PIXEL));
+      job = args[0].equals("raw")
+          ? () -> runRaw(Arrays.copyOfRange(args, 1, args.length), stripPixels)
+          : () -> runInStrips(args, stripPixels);
+    } else if (bytes > budget) {
+      int inFlight = MemoryGovernor.inFlightWithin(args, budget);
+      if (inFlight < 1) {
+        throw new RejectedExecutionException(args[0] + " needs about " + bytes / 1024
+            + "KB, more than the memory budget of " + budget / 1024 + "KB");
+      }
+      bytes = MemoryGovernor.concurrentEstimate(args, inFlight);
+      job = () -> runConcurrent(args, inFlight);
+    }
+    MemoryGovernor.Admission admission;
+    try {
+      admission = governor.admit(bytes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted waiting for memory", e);
+    }
+    try {
+      job.run();
+    } finally {
+      admission.close();
+    }
+  }
+
+  private static void compute(String[] args) {
+    ResultCache current = cache;
+    Pipeline recipe = current == null ? null : recipe(args);
+    if (recipe == null) {
+      dispatch(args);
+    } else {
+      try {
+        byte[] result = current.apply(Paths.get(args[args.length - 2]), recipe);
+        Files.write(Paths.get(args[args.length - 1]), result);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Returns the pipeline equivalent to a command that transforms one input
+   * file into one output file, or null if the command is not one of those or
+   * is malformed.
+   */
+  static Pipeline recipe(String[] args) {
+    int input = args.length - 2;
+    String spec = switch (args[0]) {
+      case "invert", "grayscale" -> input == 1 ? args[0] : null;
+      case "rotate", "flip" -> input == 2 ? args[0] + ":" + args[1] : null;
+      case "pipeline" -> input == 2 ? args[1] : null;
+      // The optional radius or sigma and border mode become step arguments
+      case "blur", "gaussian" ->
+          input >= 1 ? String.join(":", Arrays.asList(args).subList(0, input)) : null;
+      default -> null;
+    };
+    if (spec == null) {
+      return null;
+    }
+    try {
+      return Pipeline.parse(spec);
+    } catch (IllegalArgumentException e) {
+      // Left to the command itself to report
+      return null;
+    }
+  }
+
+  private static void dispatch(String[] args) {
     switch (args[0]) {
       case "invert" -> {
         Picture input = new Picture(args[1]);
@@ -16,6 +240,29 @@ public class PictureProcessor {
         Picture out = input.grayscale();
         out.saveAs(args[2]);
       }
+      case "stats" -> {
+        // Format: stats input [output], printing the statistics if there is no output
+        String statistics = new Picture(args[1]).statistics().toString();
+        if (args.length > 2) {
+          try {
+            Files.writeString(Paths.get(args[2]), statistics + System.lineSeparator());
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        } else {
+          System.out.println(statistics);
+        }
+      }
+      case "autolevels" -> {
+        Picture input = new Picture(args[1]);
+        Picture out = input.autoLevels();
+        out.saveAs(args[2]);
+      }
+      case "equalize" -> {
+        Picture input = new Picture(args[1]);
+        Picture out = input.equalize();
+        out.saveAs(args[2]);
+      }
       case "rotate" -> {
         Picture input = new Picture(args[2]);
         switch (args[1]) {
@@ -31,9 +278,8 @@ public class PictureProcessor {
             Picture out = input.rotate270();
             out.saveAs(args[3]);
           }
-          default -> {
-            System.out.println("Rotations can only be a multiple of 90.");
-          }
+          default -> throw new UsageException(
+              "Rotations can only be a multiple of 90.");
         }
       }
       case "flip" -> {
@@ -47,36 +293,255 @@ public class PictureProcessor {
             Picture out = input.flipVertical();
             out.saveAs(args[3]);
           }
-          default -> {
-            System.out.println("Format: flip [H/V] input output");
-          }
+          default -> throw new UsageException("Format: flip [H/V] input output");
         }
       }
       case "blend" -> {
-        List<Picture> inputs = new ArrayList<>();
-        for (int i = 1; i < args.length - 1; i++) {
-          inputs.add(new Picture(args[i]));
+        // Format: blend [--weights w1,w2,...] input1 input2 ... output
+        // Inputs are decoded one at a time rather than all held in memory
+        int first = 1;
+        List<Integer> weights = null;
+        if (args[1].equals("--weights")) {
+          weights = new ArrayList<>();
+          for (String weight : args[2].split(",")) {
+            weights.add(Integer.parseInt(weight));
+          }
+          first = 3;
         }
-        Picture out = Picture.blend(inputs);
+        List<String> inputs = Arrays.asList(args).subList(first, args.length - 1);
+        Picture out = weights == null
+            ? Picture.blendFiles(inputs) : Picture.blendFiles(inputs, weights);
         out.saveAs(args[args.length - 1]);
       }
       case "blur" -> {
-        Picture input = new Picture(args[1]);
-        Picture out = input.blur();
-        out.saveAs(args[2]);
+        // Format: blur [radius [keep/clamp/mirror/wrap]] input output
+        Picture input = new Picture(args[args.length - 2]);
+        Picture out;
+        if (args.length == 3) {
+          out = input.blur();
+        } else {
+          int radius = Integer.parseInt(args[1]);
+          out = input.blur(radius, borderMode(args, 2));
+        }
+        out.saveAs(args[args.length - 1]);
+      }
+      case "gaussian" -> {
+        // Format: gaussian sigma [keep/clamp/mirror/wrap] input output
+        Picture input = new Picture(args[args.length - 2]);
+        double sigma = Double.parseDouble(args[1]);
+        Picture out = input.gaussianBlur(sigma, borderMode(args, 2));
+        out.saveAs(args[args.length - 1]);
+      }
+      case "resize" -> {
+        // Format: resize WxH[,WxH...] [nearest/bilinear/area/lanczos] input output
+        // With several sizes, each output is named like output with _WxH before the extension
+        List<Dimension> sizes = new ArrayList<>();
+        for (String size : args[1].split(",")) {
+          String[] parts = size.split("x");
+          sizes.add(new Dimension(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+        }
+        ResizeFilter filter = args.length > 4
+            ? ResizeFilter.valueOf(args[2].toUpperCase()) : ResizeFilter.LANCZOS;
+        Picture input = new Picture(args[args.length - 2]);
+        List<Picture> outs = input.resize(sizes, filter);
+        String output = args[args.length - 1];
+        for (int i = 0; i < outs.size(); i++) {
+          Dimension size = sizes.get(i);
+          outs.get(i).saveAs(sizes.size() == 1 ? output : sizedName(output, size));
+        }
+      }
+      case "convolve" -> {
+        // Format: convolve kernel-file-or-name [keep/clamp/mirror/wrap] input output
+        Kernel kernel = Kernel.named(args[1]);
+        if (kernel == null) {
+          try {
+            kernel = Kernel.read(Paths.get(args[1]));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+        Picture input = new Picture(args[args.length - 2]);
+        Picture out = input.convolve(kernel, borderMode(args, 2));
+        out.saveAs(args[args.length - 1]);
+      }
+      case "pipeline" -> {
+        // Format: pipeline op[:arg...],op[:arg...],... input output
+        Picture input = new Picture(args[2]);
+        Picture out = Pipeline.parse(args[1]).apply(input);
+        out.saveAs(args[3]);
+      }
+      case "batch", "sequence" -> runConcurrent(args, BatchProcessor.DEFAULT_IN_FLIGHT);
+      case "serve" -> {
+        // Format: serve [--port N | --socket path] [--max-concurrent N] [--max-queued N]
+        String[] options = Arrays.copyOfRange(args, 1, args.length);
+        try (PictureServer server = PictureServer.fromArgs(options)) {
+          System.out.println("Listening on " + server.getAddress());
+          server.serve();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
       }
       case "mosaic" -> {
+        // Format: mosaic tileSize input1 input2 ... output
+        // Inputs are decoded only as far as their tiles, never held in memory
         int tileSize = Integer.parseInt(args[1]);
-        List<Picture> inputs = new ArrayList<>();
-        for (int i = 2; i < args.length - 1; i++) {
-          inputs.add(new Picture(args[i]));
-        }
-        Picture out = Picture.mosaic(inputs, tileSize);
+        List<String> inputs = Arrays.asList(args).subList(2, args.length - 1);
+        Picture out = Picture.mosaicFiles(inputs, tileSize);
         out.saveAs(args[args.length - 1]);
       }
-      default -> {
-        System.out.println("Incorrect format");
+      case "raw" -> {
+        // Format: raw import input.png output.raw, raw export input.raw output.png,
+        // raw mosaic tileSize input1.raw input2.raw ... output.raw or
+        // raw op [args...] input.raw output.raw, for pictures too large for memory
+        runRaw(Arrays.copyOfRange(args, 1, args.length), RawPicture.DEFAULT_STRIP_PIXELS);
+      }
+      default -> throw new UsageException("Incorrect format");
+    }
+  }
+
+  /**
+   * Run a batch or sequence command with at most inFlight files or outputs in flight.
+   */
+  private static void runConcurrent(String[] args, int inFlight) {
+    BatchProcessor.Result result;
+    if (args[0].equals("batch")) {
+      // Format: batch op[:arg...],... input-directory-or-glob output-directory
+      BatchProcessor batch = new BatchProcessor(Pipeline.parse(args[1]), inFlight);
+      result = batch.run(BatchProcessor.expand(args[2]), Paths.get(args[3]));
+    } else {
+      // Format: sequence window [op[:arg...],...] input-directory-or-glob output-directory
+      // Each output averages window consecutive frames, each frame decoded once
+      Pipeline pipeline = args.length == 5 ? Pipeline.parse(args[2]) : new Pipeline();
+      SequenceProcessor sequence =
+          new SequenceProcessor(Integer.parseInt(args[1]), pipeline, inFlight);
+      result = sequence.run(
+          BatchProcessor.expand(args[args.length - 2]), Paths.get(args[args.length - 1]));
+    }
+    for (BatchProcessor.Failure failure : result.failures()) {
+      System.out.println("Failed " + failure.input() + ": " + failure.cause());
+    }
+    System.out.println(result.summary());
+  }
+
+  private static void runRaw(String[] args, int stripPixels) {
+    try {
+      runRawChecked(args, stripPixels);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void runRawChecked(String[] args, int stripPixels) throws IOException {
+    Path output = Paths.get(args[args.length - 1]);
+    if (args[0].equals("import")) {
+      RawPicture.fromPng(Paths.get(args[1]), output, stripPixels).close();
+      return;
+    }
+    if (args[0].equals("mosaic")) {
+      List<RawPicture> inputs = new ArrayList<>();
+      try {
+        for (String input : Arrays.asList(args).subList(2, args.length - 1)) {
+          inputs.add(RawPicture.open(Paths.get(input)));
+        }
+        RawPicture.mosaic(inputs, Integer.parseInt(args[1]), output).close();
+      } finally {
+        for (RawPicture input : inputs) {
+          input.close();
+        }
+      }
+      return;
+    }
+    try (RawPicture input = RawPicture.open(Paths.get(args[args.length - 2]))) {
+      input.setStripPixels(stripPixels);
+      RawPicture out = switch (args[0]) {
+        case "export" -> {
+          input.toPng(output);
+          yield null;
+        }
+        case "invert" -> input.invert(output);
+        case "grayscale" -> input.grayscale(output);
+        case "rotate" -> switch (args[1]) {
+          case "90" -> input.rotate90(output);
+          case "180" -> input.rotate180(output);
+          case "270" -> input.rotate270(output);
+          default -> throw new UsageException(
+              "Rotations can only be a multiple of 90.");
+        };
+        case "flip" -> switch (args[1]) {
+          case "H" -> input.flipHorizontal(output);
+          case "V" -> input.flipVertical(output);
+          default -> throw new UsageException("Format: raw flip [H/V] input output");
+        };
+        case "blur" -> input.blur(output, Integer.parseInt(args[1]), borderMode(args, 2));
+        default -> throw new UsageException("Unknown raw operation " + args[0]);
+      };
+      if (out != null) {
+        out.close();
       }
     }
   }
+
+  /**
+   * Run a command from STRIP_COMMANDS as the same raw command on a temporary raw copy of its
+   * input, with strips of roughly stripPixels pixels, so that only a strip is ever in memory.
+   */
+  private static void runInStrips(String[] args, int stripPixels) {
+    int input = args.length - 2;
+    List<String> operation = new ArrayList<>(Arrays.asList(args).subList(0, input));
+    if (operation.size() == 1 && args[0].equals("blur")) {
+      // The radius of a plain blur
+      operation.add("1");
+    }
+    try {
+      Path source = Files.createTempFile("picture-strips", ".raw");
+      Path result = Files.createTempFile("picture-strips", ".raw");
+      try {
+        runRaw(new String[] {"import", args[input], source.toString()}, stripPixels);
+        operation.add(source.toString());
+        operation.add(result.toString());
+        runRaw(operation.toArray(new String[0]), stripPixels);
+        runRaw(new String[] {"export", result.toString(), args[input + 1]}, stripPixels);
+      } finally {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(result);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns filepath with _WxH inserted before its extension.
+   */
+  private static String sizedName(String filepath, Dimension size) {
+    // Only the file name is searched, so a dot in a directory name is never taken as one
+    Path path = Paths.get(filepath);
+    String name = path.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    String suffix = "_" + size.width + "x" + size.height;
+    String sized = dot < 0 ? name + suffix
+        : name.substring(0, dot) + suffix + name.substring(dot);
+    return path.resolveSibling(sized).toString();
+  }
+
+  private static BorderMode borderMode(String[] args, int index) {
+    // The border mode is optional and sits just before the input and output
+    if (index < args.length - 2) {
+      return BorderMode.valueOf(args[index].toUpperCase());
+    }
+    return BorderMode.KEEP;
+  }
+
+  /**
+   * A command line that does not match the format of its command, reported to the user as just
+   * its message. Other exceptions are failures of the command itself.
+   */
+  static final class UsageException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    UsageException(String message) {
+      super(message);
+    }
+  }
 }
@@ -0,0 +1,334 @@
+package picture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-running server that runs {@link PictureProcessor} operations for clients, so that each
+ * request does not pay for JVM start-up and a cold JIT. It listens on a local TCP port or a Unix
+ * domain socket.
+ *
+ * <p>A request is an int count followed by that many UTF strings, the same arguments as the
+ * command line, for example <tt>invert in.png out.png</tt>. An argument of <tt>-</tt> in place of
+ * an input file is followed by an int length and the bytes of that image. A last argument of
+ * <tt>-</tt> asks for the output to be sent back instead of written to a file. The response is a
+ * UTF status, either <tt>OK</tt> or <tt>ERROR</tt> and a message, followed by an int length and
+ * the output bytes if they were asked for. The request <tt>stats</tt> on its own returns the
+ * request metrics in its status, while <tt>stats in.png out.txt</tt> writes the statistics of a
+ * picture like any other output. A connection may carry any number of requests, one after
+ * another. A request with a negative or excessive count or length is answered with an error and
+ * ends its connection.
+ *
+ * <p>Each connection is handled on its own virtual thread when the JVM has them, and on a platform
+ * thread otherwise. At most maxConcurrent requests run at once. Up to maxQueued more wait for a
+ * turn, and any beyond that are rejected. Started as <tt>--memory-mb N serve</tt>, requests are
+ * also admitted against a budget of memory by a {@link MemoryGovernor}.
+ */
+public class PictureServer implements Closeable {
+
+  public static final int DEFAULT_PORT = 7878;
+
+  static final String STREAM = "-";
+
+  /**
+   * The most arguments in a request and the most bytes of a streamed image, so that a bad length
+   * from a client cannot make the server allocate without bound.
+   */
+  static final int MAX_ARGS = 4096;
+  static final int MAX_STREAMED_BYTES = 256 << 20;
+
+  private final ServerSocketChannel channel;
+  private final Path socketPath;
+  private final ExecutorService handlers;
+  private final Semaphore permits;
+  private final int maxQueued;
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger maxQueuedSeen = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Construct a server bound to address, which is either an InetSocketAddress or a
+   * UnixDomainSocketAddress.
+   *
+   * @param address       the address to listen on.
+   * @param maxConcurrent the most requests that run at once.
+   * @param maxQueued     the most requests that wait for a turn before new ones are rejected.
+   * @throws IOException if the address cannot be bound.
+   */
+  public PictureServer(SocketAddress address, int maxConcurrent, int maxQueued)
+      throws IOException {
+    if (maxConcurrent < 1 || maxQueued < 0) {
+      throw new IllegalArgumentException("Invalid limits: " + maxConcurrent + ", " + maxQueued);
+    }
+    if (address instanceof UnixDomainSocketAddress unix) {
+      channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      socketPath = unix.getPath();
+    } else {
+      channel = ServerSocketChannel.open();
+      socketPath = null;
+    }
+    channel.bind(address);
+    handlers = newHandlerExecutor();
+    permits = new Semaphore(maxConcurrent);
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Construct a server from command line options: <tt>--port N</tt> or <tt>--socket path</tt>,
+   * <tt>--max-concurrent N</tt> and <tt>--max-queued N</tt>. A TCP server only accepts connections
+   * from the loopback address.
+   */
+  static PictureServer fromArgs(String[] args) throws IOException {
+    SocketAddress address =
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+    int maxConcurrent = Runtime.getRuntime().availableProcessors();
+    int maxQueued = 64;
+    for (int i = 0; i < args.length; i += 2) {
+      switch (args[i]) {
+        case "--port" -> address = new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), Integer.parseInt(args[i + 1]));
+        case "--socket" -> address = UnixDomainSocketAddress.of(args[i + 1]);
+        case "--max-concurrent" -> maxConcurrent = Integer.parseInt(args[i + 1]);
+        case "--max-queued" -> maxQueued = Integer.parseInt(args[i + 1]);
+        default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    return new PictureServer(address, maxConcurrent, maxQueued);
+  }
+
+  /**
+   * Returns a new thread per task executor, using virtual threads if this JVM supports them.
+   */
+  private static ExecutorService newHandlerExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  public SocketAddress getAddress() throws IOException {
+    return channel.getLocalAddress();
+  }
+
+  /**
+   * Accept connections until this server is closed.
+   */
+  public void serve() throws IOException {
+    try {
+      while (true) {
+        SocketChannel connection = channel.accept();
+        handlers.execute(() -> handle(connection));
+      }
+    } catch (ClosedChannelException e) {
+      // Closed by close()
+    }
+  }
+
+  /**
+   * Returns a one line summary of the requests handled so far.
+   */
+  public String stats() {
+    return "active=" + active.get()
+        + " queued=" + queued.get()
+        + " maxQueued=" + maxQueuedSeen.get()
+        + " completed=" + completed.get()
+        + " failed=" + failed.get()
+        + " rejected=" + rejected.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    handlers.shutdownNow();
+    if (socketPath != null) {
+      Files.deleteIfExists(socketPath);
+    }
+  }
+
+  private void handle(SocketChannel connection) {
+    try (connection;
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(connection)));
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(connection)))) {
+      try {
+        while (true) {
+          String[] args;
+          try {
+            args = readArgs(in);
+          } catch (EOFException e) {
+            return;
+          }
+          respond(args, in, out);
+          out.flush();
+        }
+      } catch (ProtocolException e) {
+        // Nothing after a bad length can be parsed, so the error ends the connection
+        failed.incrementAndGet();
+        out.writeUTF("ERROR " + e.getMessage());
+        out.flush();
+      }
+    } catch (IOException e) {
+      // The client went away; there is nobody left to report to
+    }
+  }
+
+  private void respond(String[] args, DataInputStream in, DataOutputStream out)
+      throws IOException {
+    List<Path> temporary = new ArrayList<>();
+    try {
+      // Streamed inputs are always read, even if the request is then refused
+      boolean streamOutput = args.length > 1 && args[args.length - 1].equals(STREAM);
+      for (int i = 0; i < args.length - 1; i++) {
+        if (args[i].equals(STREAM)) {
+          Path input = Files.createTempFile("picture-server", ".png");
+          temporary.add(input);
+          Files.write(input, readBytes(in));
+          args[i] = input.toString();
+        }
+      }
+      Path output = null;
+      if (streamOutput) {
+        output = Files.createTempFile("picture-server", ".png");
+        temporary.add(output);
+        args[args.length - 1] = output.toString();
+      }
+
+      String error = execute(args);
+      if (error != null) {
+        out.writeUTF("ERROR " + error);
+      } else if (args.length == 1 && args[0].equals("stats")) {
+        out.writeUTF("OK " + stats());
+      } else {
+        out.writeUTF("OK");
+        if (streamOutput) {
+          writeBytes(out, Files.readAllBytes(output));
+        }
+      }
+    } finally {
+      for (Path path : temporary) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /**
+   * Run a request once a permit is free, returning an error message or null if it succeeded.
+   */
+  private String execute(String[] args) {
+    if (args.length == 1 && args[0].equals("stats")) {
+      return null;
+    }
+    if (args.length == 0 || !PictureProcessor.COMMANDS.contains(args[0])
+        || args[0].equals("serve")) {
+      failed.incrementAndGet();
+      return "Unsupported request";
+    }
+    if (args[0].equals("stats") && args.length != 3) {
+      // Printed statistics would go to the server's console, not back to the client
+      failed.incrementAndGet();
+      return "Format: stats input output";
+    }
+    if (!permits.tryAcquire()) {
+      int waiting = queued.incrementAndGet();
+      if (waiting > maxQueued) {
+        queued.decrementAndGet();
+        rejected.incrementAndGet();
+        return "Server busy";
+      }
+      maxQueuedSeen.accumulateAndGet(waiting, Math::max);
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return "Interrupted";
+      } finally {
+        queued.decrementAndGet();
+      }
+    }
+    active.incrementAndGet();
+    try {
+      PictureProcessor.run(args);
+      completed.incrementAndGet();
+      return null;
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      return String.valueOf(e.getCause() != null ? e.getCause() : e);
+    } finally {
+      active.decrementAndGet();
+      permits.release();
+    }
+  }
+
+  static String[] readArgs(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > MAX_ARGS) {
+      throw new ProtocolException("Invalid argument count " + count);
+    }
+    String[] args = new String[count];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = in.readUTF();
+    }
+    return args;
+  }
+
+  static void writeArgs(DataOutputStream out, String[] args) throws IOException {
+    out.writeInt(args.length);
+    for (String arg : args) {
+      out.writeUTF(arg);
+    }
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_STREAMED_BYTES) {
+      throw new ProtocolException("Invalid image length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Resolve path against the working directory, since the server may have a different one.
+   */
+  static String absolute(String path) {
+    return Paths.get(path).toAbsolutePath().toString();
+  }
+}
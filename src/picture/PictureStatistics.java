@@ -0,0 +1,173 @@
+package picture;
+
+/**
+ * The histogram of every channel of a picture, together with the minimum, maximum, mean and
+ * standard deviation derived from it. All of them come from one pass over the pixels: each band
+ * of rows counts into its own <tt>int[256]</tt> per channel, and the counts of the bands are
+ * merged at the end.
+ */
+public final class PictureStatistics {
+
+  /**
+   * A colour channel of a packed 0xRRGGBB pixel.
+   */
+  public enum Channel {
+    RED(16), GREEN(8), BLUE(0);
+
+    private final int shift;
+
+    Channel(int shift) {
+      this.shift = shift;
+    }
+
+    /**
+     * Returns value, from 0 to 255, moved to the position of this channel in a packed pixel.
+     */
+    int pack(int value) {
+      return value << shift;
+    }
+  }
+
+  static final int LEVELS = 256;
+
+  private static final Channel[] CHANNELS = Channel.values();
+
+  private final long pixelCount;
+  private final long[][] histograms;
+
+  private PictureStatistics(long pixelCount, long[][] histograms) {
+    this.pixelCount = pixelCount;
+    this.histograms = histograms;
+  }
+
+  /**
+   * Compute the statistics of picture.
+   */
+  static PictureStatistics of(Picture picture) {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int[] pixels = picture.dataForReading();
+    long[][] totals = new long[CHANNELS.length][LEVELS];
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      int[] red = new int[LEVELS];
+      int[] green = new int[LEVELS];
+      int[] blue = new int[LEVELS];
+      for (int i = fromRow * width; i < toRow * width; i++) {
+        int rgb = pixels[i];
+        red[Picture.red(rgb)]++;
+        green[Picture.green(rgb)]++;
+        blue[Picture.blue(rgb)]++;
+      }
+      synchronized (totals) {
+        for (int level = 0; level < LEVELS; level++) {
+          totals[0][level] += red[level];
+          totals[1][level] += green[level];
+          totals[2][level] += blue[level];
+        }
+      }
+    });
+    return new PictureStatistics((long) width * height, totals);
+  }
+
+  public long getPixelCount() {
+    return pixelCount;
+  }
+
+  /**
+   * Returns the number of pixels at each level, from 0 to 255, of channel.
+   */
+  public long[] getHistogram(Channel channel) {
+    return histograms[channel.ordinal()].clone();
+  }
+
+  /**
+   * Returns the lowest level of channel in the picture.
+   */
+  public int getMin(Channel channel) {
+    long[] histogram = histograms[channel.ordinal()];
+    int level = 0;
+    while (level < LEVELS - 1 && histogram[level] == 0) {
+      level++;
+    }
+    return level;
+  }
+
+  /**
+   * Returns the highest level of channel in the picture.
+   */
+  public int getMax(Channel channel) {
+    long[] histogram = histograms[channel.ordinal()];
+    int level = LEVELS - 1;
+    while (level > 0 && histogram[level] == 0) {
+      level--;
+    }
+    return level;
+  }
+
+  public double getMean(Channel channel) {
+    long[] histogram = histograms[channel.ordinal()];
+    long sum = 0;
+    for (int level = 0; level < LEVELS; level++) {
+      sum += histogram[level] * level;
+    }
+    return (double) sum / pixelCount;
+  }
+
+  public double getStandardDeviation(Channel channel) {
+    long[] histogram = histograms[channel.ordinal()];
+    double mean = getMean(channel);
+    double squares = 0;
+    for (int level = 0; level < LEVELS; level++) {
+      squares += histogram[level] * (level - mean) * (level - mean);
+    }
+    return Math.sqrt(squares / pixelCount);
+  }
+
+  /**
+   * Returns the table that stretches channel linearly so that its lowest level becomes 0 and its
+   * highest 255, or the identity if the channel has only one level.
+   */
+  int[] stretch(Channel channel) {
+    int min = getMin(channel);
+    int max = getMax(channel);
+    int[] table = new int[LEVELS];
+    for (int level = 0; level < LEVELS; level++) {
+      int clamped = Math.max(min, Math.min(max, level));
+      table[level] = max == min ? level : ((clamped - min) * 255 + (max - min) / 2) / (max - min);
+    }
+    return table;
+  }
+
+  /**
+   * Returns the table that maps each level of channel through its cumulative distribution, so
+   * that the levels of the result are spread as evenly as the histogram allows. The lowest level
+   * present becomes 0 and the highest 255.
+   */
+  int[] equalize(Channel channel) {
+    long[] histogram = histograms[channel.ordinal()];
+    long first = histogram[getMin(channel)];
+    long range = pixelCount - first;
+    int[] table = new int[LEVELS];
+    long cumulative = 0;
+    for (int level = 0; level < LEVELS; level++) {
+      cumulative += histogram[level];
+      table[level] = range == 0
+          ? level : (int) ((Math.max(0, cumulative - first) * 255 + range / 2) / range);
+    }
+    return table;
+  }
+
+  /**
+   * Returns a summary with one line per channel.
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("pixels=" + pixelCount);
+    for (Channel channel : CHANNELS) {
+      sb.append(String.format("%n%s min=%d max=%d mean=%.2f stddev=%.2f",
+          channel.name().toLowerCase(), getMin(channel), getMax(channel), getMean(channel),
+          getStandardDeviation(channel)));
+    }
+    return sb.toString();
+  }
+}
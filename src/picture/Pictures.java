@@ -0,0 +1,162 @@
+package picture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous loading of pictures, the start of an {@link AsyncPicture} chain. File reads and
+ * writes run on a small pool of I/O threads, and decoding, encoding and operations on a separate
+ * pool of CPU threads, so a caller never blocks and a few threads serve many concurrent chains.
+ *
+ * <p>Both pools have bounded queues. Once a queue is full, new work is not queued but fails at
+ * once with a {@link RejectedExecutionException}, so that an overloaded service sheds requests
+ * rather than piling them up in memory.
+ */
+public final class Pictures {
+
+  private static final int DEFAULT_IO_THREADS = 4;
+  private static final int DEFAULT_MAX_QUEUED = 256;
+
+  private static ExecutorService io;
+  private static ExecutorService cpu;
+
+  static {
+    setExecutors(DEFAULT_IO_THREADS, Runtime.getRuntime().availableProcessors(),
+        DEFAULT_MAX_QUEUED);
+  }
+
+  private Pictures() {
+  }
+
+  /**
+   * Replace the I/O and CPU pools. Work already queued on the old pools still runs.
+   *
+   * @param ioThreads  the number of threads reading and writing files.
+   * @param cpuThreads the number of threads decoding, encoding and running operations.
+   * @param maxQueued  the most tasks each pool holds waiting for a thread.
+   * @throws IllegalArgumentException if any count is less than 1.
+   */
+  public static synchronized void setExecutors(int ioThreads, int cpuThreads, int maxQueued) {
+    if (ioThreads < 1 || cpuThreads < 1 || maxQueued < 1) {
+      throw new IllegalArgumentException("Thread counts and maxQueued must be at least 1");
+    }
+    if (io != null) {
+      io.shutdown();
+      cpu.shutdown();
+    }
+    io = newPool("picture-io", ioThreads, maxQueued);
+    cpu = newPool("picture-cpu", cpuThreads, maxQueued);
+  }
+
+  /**
+   * Start reading and decoding the image at filepath.
+   */
+  public static AsyncPicture loadAsync(String filepath) {
+    AtomicBoolean cancelled = new AtomicBoolean();
+    CompletableFuture<byte[]> read = new CompletableFuture<>();
+    submit(io(), read, cancelled, () -> {
+      try {
+        return Files.readAllBytes(Paths.get(filepath));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    CompletableFuture<Picture> decoded = new CompletableFuture<>();
+    read.whenComplete((bytes, failure) -> {
+      if (failure != null) {
+        decoded.completeExceptionally(failure);
+      } else {
+        submit(cpu(), decoded, cancelled, () -> {
+          try {
+            return PictureIO.read(bytes);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+    });
+    return new AsyncPicture(decoded, cancelled);
+  }
+
+  /**
+   * Start a chain from a picture that is already in memory.
+   */
+  public static AsyncPicture of(Picture picture) {
+    return new AsyncPicture(CompletableFuture.completedFuture(picture), new AtomicBoolean());
+  }
+
+  static synchronized ExecutorService io() {
+    return io;
+  }
+
+  static synchronized ExecutorService cpu() {
+    return cpu;
+  }
+
+  /**
+   * Run work on executor and complete target with its result, unless cancelled is set before it
+   * starts or at a band boundary while it runs, in which case target is cancelled.
+   */
+  static <T> void submit(ExecutorService executor, CompletableFuture<T> target,
+      AtomicBoolean cancelled, Supplier<T> work) {
+    try {
+      executor.execute(() -> {
+        if (cancelled.get()) {
+          target.cancel(false);
+          return;
+        }
+        try {
+          target.complete(RowBands.cancellable(cancelled::get, work));
+        } catch (CancellationException e) {
+          target.cancel(false);
+        } catch (RuntimeException | Error e) {
+          target.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      target.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Write bytes to file on the I/O pool.
+   */
+  static CompletableFuture<Void> write(byte[] bytes, Path file, AtomicBoolean cancelled) {
+    CompletableFuture<Void> written = new CompletableFuture<>();
+    submit(io(), written, cancelled, () -> {
+      try {
+        Files.write(file, bytes);
+        return null;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    return written;
+  }
+
+  private static ExecutorService newPool(String name, int threads, int maxQueued) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = task -> {
+      Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+      // Idle pools must not keep the JVM alive
+      thread.setDaemon(true);
+      return thread;
+    };
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(maxQueued), factory, new ThreadPoolExecutor.AbortPolicy());
+  }
+}
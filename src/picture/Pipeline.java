@@ -0,0 +1,405 @@
+package picture;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * A lazily evaluated chain of Picture operations. Operations are only recorded until
+ * {@link #apply(Picture)} is called. Consecutive point operations (invert, grayscale) and
+ * coordinate remaps (rotations and flips) are then fused into a single traversal of the input
+ * without any intermediate pictures. A picture is only materialised before a neighbourhood
+ * operation such as blur, which needs its whole input.
+ *
+ * <p>{@link #apply(Picture, Rectangle)} computes just one region of the result, reading only the
+ * part of the input that region depends on.
+ *
+ * <p>A pipeline can be written as a comma separated spec, for example
+ * <tt>grayscale,invert,flip:H</tt>, where arguments follow the operation name after colons.
+ */
+public class Pipeline {
+
+  private final List<Step> steps = new ArrayList<>();
+
+  /**
+   * Parse a comma separated spec such as <tt>grayscale,rotate:90,blur:3:mirror</tt>.
+   *
+   * @param spec the operations to record, in order.
+   * @return a pipeline with the operations of spec.
+   * @throws IllegalArgumentException if an operation or argument is not recognised.
+   */
+  public static Pipeline parse(String spec) {
+    Pipeline pipeline = new Pipeline();
+    for (String token : spec.split(",")) {
+      String[] parts = token.trim().split(":");
+      switch (parts[0]) {
+        case "invert" -> pipeline.invert();
+        case "grayscale" -> pipeline.grayscale();
+        case "rotate" -> {
+          switch (argument(parts, 1, token)) {
+            case "90" -> pipeline.rotate90();
+            case "180" -> pipeline.rotate180();
+            case "270" -> pipeline.rotate270();
+            default -> throw new IllegalArgumentException(
+                "Rotations can only be a multiple of 90: " + token);
+          }
+        }
+        case "flip" -> {
+          switch (argument(parts, 1, token)) {
+            case "H" -> pipeline.flipHorizontal();
+            case "V" -> pipeline.flipVertical();
+            default -> throw new IllegalArgumentException("Flips can only be H or V: " + token);
+          }
+        }
+        case "blur" -> {
+          int radius = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+          pipeline.blur(radius, borderMode(parts, 2));
+        }
+        case "gaussian" -> {
+          double sigma = Double.parseDouble(argument(parts, 1, token));
+          pipeline.gaussianBlur(sigma, borderMode(parts, 2));
+        }
+        default -> throw new IllegalArgumentException("Unknown operation: " + token);
+      }
+    }
+    return pipeline;
+  }
+
+  private static String argument(String[] parts, int index, String token) {
+    if (index >= parts.length) {
+      throw new IllegalArgumentException("Missing argument: " + token);
+    }
+    return parts[index];
+  }
+
+  private static BorderMode borderMode(String[] parts, int index) {
+    return index < parts.length ? BorderMode.valueOf(parts[index].toUpperCase()) : BorderMode.KEEP;
+  }
+
+  public Pipeline invert() {
+    steps.add(new PointStep("invert", Picture::invert));
+    return this;
+  }
+
+  public Pipeline grayscale() {
+    steps.add(new PointStep("grayscale", Picture::grayscale));
+    return this;
+  }
+
+  public Pipeline rotate90() {
+    steps.add(new RemapStep("rotate:90", Orientation.ROTATE_90));
+    return this;
+  }
+
+  public Pipeline rotate180() {
+    steps.add(new RemapStep("rotate:180", Orientation.ROTATE_180));
+    return this;
+  }
+
+  public Pipeline rotate270() {
+    steps.add(new RemapStep("rotate:270", Orientation.ROTATE_270));
+    return this;
+  }
+
+  public Pipeline flipHorizontal() {
+    steps.add(new RemapStep("flip:H", Orientation.FLIP_H));
+    return this;
+  }
+
+  public Pipeline flipVertical() {
+    steps.add(new RemapStep("flip:V", Orientation.FLIP_V));
+    return this;
+  }
+
+  public Pipeline blur(int radius, BorderMode border) {
+    steps.add(new NeighbourhoodStep("blur:" + radius + ":" + border.name().toLowerCase(),
+        Math.max(radius, 0), border, picture -> picture.blur(radius, border)));
+    return this;
+  }
+
+  public Pipeline gaussianBlur(double sigma, BorderMode border) {
+    // The three box passes each reach a further radius out
+    int halo = sigma > 0 ? Arrays.stream(Blur.gaussianRadii(sigma)).sum() : 0;
+    steps.add(new NeighbourhoodStep("gaussian:" + sigma + ":" + border.name().toLowerCase(),
+        halo, border, picture -> picture.gaussianBlur(sigma, border)));
+    return this;
+  }
+
+  /**
+   * Run the recorded operations on input. The input is not modified.
+   *
+   * @param input the picture to process.
+   * @return a new picture holding the result of every operation in order.
+   */
+  public Picture apply(Picture input) {
+    Picture current = input;
+    Remap remap = Remap.identity(input.getWidth(), input.getHeight());
+    IntUnaryOperator point = null;
+    for (Step step : steps) {
+      if (step instanceof PointStep pointStep) {
+        point = point == null ? pointStep.op() : point.andThen(pointStep.op());
+      } else if (step instanceof RemapStep remapStep) {
+        remap = remapStep.orientation().after(remap);
+      } else if (step instanceof NeighbourhoodStep neighbourhood) {
+        if (point != null || !remap.isIdentity()) {
+          current = traverse(current, remap, point);
+        }
+        current = neighbourhood.op().apply(current);
+        remap = Remap.identity(current.getWidth(), current.getHeight());
+        point = null;
+      }
+    }
+    if (current == input || point != null || !remap.isIdentity()) {
+      current = traverse(current, remap, point);
+    }
+    return current;
+  }
+
+  /**
+   * Run the recorded operations on input, computing only the pixels of the result inside region.
+   * A neighbourhood operation such as blur is given just the halo of its input around the region
+   * that it reads, so the cost follows the size of region rather than the size of input. The input
+   * is not modified.
+   *
+   * @param input  the picture to process.
+   * @param region the part of the result to compute, in the co-ordinates of the result.
+   * @return a picture the size of region whose pixel (x, y) is the pixel (region.x + x, region.y +
+   *     y) of {@link #apply(Picture)}.
+   * @throws IllegalArgumentException if region is empty or reaches outside the result.
+   */
+  public Picture apply(Picture input, Rectangle region) {
+    int steps = this.steps.size();
+    int[] widths = new int[steps + 1];
+    int[] heights = new int[steps + 1];
+    widths[0] = input.getWidth();
+    heights[0] = input.getHeight();
+    for (int i = 0; i < steps; i++) {
+      boolean swap = this.steps.get(i) instanceof RemapStep remapStep
+          && remapStep.orientation().swapsAxes();
+      widths[i + 1] = swap ? heights[i] : widths[i];
+      heights[i + 1] = swap ? widths[i] : heights[i];
+    }
+    if (region.isEmpty()
+        || !new Rectangle(widths[steps], heights[steps]).contains(region)) {
+      throw new IllegalArgumentException("Region " + region + " is not inside the "
+          + widths[steps] + "x" + heights[steps] + " result");
+    }
+    Picture out = evaluate(input, steps, region, widths, heights);
+    return out == input ? traverse(input, Remap.identity(region.width, region.height), null) : out;
+  }
+
+  /**
+   * Returns true if the result of this pipeline has the width and height of its input swapped.
+   */
+  boolean swapsAxes() {
+    boolean swap = false;
+    for (Step step : steps) {
+      if (step instanceof RemapStep remapStep && remapStep.orientation().swapsAxes()) {
+        swap = !swap;
+      }
+    }
+    return swap;
+  }
+
+  /**
+   * Returns the pixels inside region of the output of the first count steps applied to input.
+   */
+  private Picture evaluate(Picture input, int count, Rectangle region, int[] widths,
+      int[] heights) {
+    // The fused point operations and remaps since the last neighbourhood operation
+    int start = count;
+    while (start > 0 && !(steps.get(start - 1) instanceof NeighbourhoodStep)) {
+      start--;
+    }
+    Remap remap = Remap.identity(widths[start], heights[start]);
+    IntUnaryOperator point = null;
+    for (int i = start; i < count; i++) {
+      if (steps.get(i) instanceof PointStep pointStep) {
+        point = point == null ? pointStep.op() : point.andThen(pointStep.op());
+      } else {
+        remap = ((RemapStep) steps.get(i)).orientation().after(remap);
+      }
+    }
+    // Every remap is a rotation or flip, so a rectangle maps onto a rectangle
+    int right = region.x + region.width - 1;
+    int bottom = region.y + region.height - 1;
+    int sourceX = Math.min(remap.sourceX(region.x, region.y), remap.sourceX(right, bottom));
+    int sourceY = Math.min(remap.sourceY(region.x, region.y), remap.sourceY(right, bottom));
+    boolean swap = remap.xx() == 0;
+    Rectangle source = new Rectangle(sourceX, sourceY,
+        swap ? region.height : region.width, swap ? region.width : region.height);
+
+    Picture current;
+    if (start == 0) {
+      current = crop(input, source, 0, 0);
+    } else {
+      NeighbourhoodStep neighbourhood = (NeighbourhoodStep) steps.get(start - 1);
+      Rectangle bounds = new Rectangle(widths[start], heights[start]);
+      Rectangle halo = new Rectangle(source);
+      halo.grow(neighbourhood.halo(), neighbourhood.halo());
+      // Cutting the input short leaves wrong pixels at most halo in from the cut, which are
+      // dropped, but a wrapped border reads the opposite edge so needs the whole input
+      Rectangle needed = neighbourhood.border() == BorderMode.WRAP && !bounds.contains(halo)
+          ? bounds : halo.intersection(bounds);
+      Picture blurred = neighbourhood.op().apply(
+          evaluate(input, start - 1, needed, widths, heights));
+      current = crop(blurred, source, needed.x, needed.y);
+    }
+    if (point == null && remap.isIdentity()) {
+      return current;
+    }
+    // Moves the remap onto the co-ordinates of the region and of the cropped source
+    Remap local = new Remap(remap.xx(), remap.xy(),
+        remap.sourceX(region.x, region.y) - sourceX,
+        remap.yx(), remap.yy(),
+        remap.sourceY(region.x, region.y) - sourceY,
+        region.width, region.height);
+    return traverse(current, local, point);
+  }
+
+  /**
+   * Copy the pixels of src inside region, whose co-ordinates are offset by (x, y) from those of
+   * src, into a new picture.
+   */
+  private static Picture crop(Picture src, Rectangle region, int x, int y) {
+    if (x == 0 && y == 0 && region.x == 0 && region.y == 0
+        && region.width == src.getWidth() && region.height == src.getHeight()) {
+      return src;
+    }
+    Picture out = new Picture(region.width, region.height);
+    int[] in = src.dataForReading();
+    int[] dst = out.data();
+    for (int row = 0; row < region.height; row++) {
+      System.arraycopy(in, (region.y - y + row) * src.getWidth() + region.x - x,
+          dst, row * region.width, region.width);
+    }
+    return out;
+  }
+
+  /**
+   * Returns the spec of this pipeline, which {@link #parse(String)} turns back into an equivalent
+   * pipeline.
+   */
+  @Override
+  public String toString() {
+    List<String> names = new ArrayList<>();
+    for (Step step : steps) {
+      names.add(step.name());
+    }
+    return String.join(",", names);
+  }
+
+  /**
+   * Make the picture whose pixel (x, y) is point applied to the pixel of src at remap(x, y).
+   */
+  private static Picture traverse(Picture src, Remap remap, IntUnaryOperator point) {
+    int width = remap.width();
+    int height = remap.height();
+    Picture out = new Picture(width, height);
+    int[] in = src.dataForReading();
+    int[] dst = out.data();
+    int srcWidth = src.getWidth();
+    // Moving one pixel right in the output moves step pixels through the input
+    int step = remap.xx() + remap.yx() * srcWidth;
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      for (int y = fromRow; y < toRow; y++) {
+        int index = (remap.yy() * y + remap.y0()) * srcWidth + remap.xy() * y + remap.x0();
+        int row = y * width;
+        if (point == null) {
+          for (int x = 0; x < width; x++, index += step) {
+            dst[row + x] = in[index];
+          }
+        } else {
+          for (int x = 0; x < width; x++, index += step) {
+            dst[row + x] = point.applyAsInt(in[index]);
+          }
+        }
+      }
+    });
+    return out;
+  }
+
+  private interface Step {
+    String name();
+  }
+
+  private record PointStep(String name, IntUnaryOperator op) implements Step {
+  }
+
+  private record RemapStep(String name, Orientation orientation) implements Step {
+  }
+
+  /**
+   * An operation whose output pixels each read the input pixels at most halo away.
+   */
+  private record NeighbourhoodStep(String name, int halo, BorderMode border,
+      UnaryOperator<Picture> op) implements Step {
+  }
+
+  /**
+   * Maps an output co-ordinate (x, y) onto the source pixel (xx * x + xy * y + x0, yx * x + yy *
+   * y + y0), for an output that is width by height pixels.
+   */
+  private record Remap(int xx, int xy, int x0, int yx, int yy, int y0, int width, int height) {
+
+    static Remap identity(int width, int height) {
+      return new Remap(1, 0, 0, 0, 1, 0, width, height);
+    }
+
+    int sourceX(int x, int y) {
+      return xx * x + xy * y + x0;
+    }
+
+    int sourceY(int x, int y) {
+      return yx * x + yy * y + y0;
+    }
+
+    boolean isIdentity() {
+      return xx == 1 && xy == 0 && x0 == 0 && yx == 0 && yy == 1 && y0 == 0;
+    }
+
+    /**
+     * Returns the remap that first applies inner to an output co-ordinate and then this.
+     */
+    Remap compose(Remap inner) {
+      return new Remap(
+          xx * inner.xx + xy * inner.yx,
+          xx * inner.xy + xy * inner.yy,
+          xx * inner.x0 + xy * inner.y0 + x0,
+          yx * inner.xx + yy * inner.yx,
+          yx * inner.xy + yy * inner.yy,
+          yx * inner.x0 + yy * inner.y0 + y0,
+          inner.width,
+          inner.height);
+    }
+  }
+
+  private enum Orientation {
+    ROTATE_90, ROTATE_180, ROTATE_270, FLIP_H, FLIP_V;
+
+    boolean swapsAxes() {
+      return this == ROTATE_90 || this == ROTATE_270;
+    }
+
+    /**
+     * Returns the remap of the pipeline once this is applied to the output of current.
+     */
+    Remap after(Remap current) {
+      int w = current.width();
+      int h = current.height();
+      Remap step = switch (this) {
+        // Output (x, y) of a 90 degree rotation reads (y, h - x - 1)
+        case ROTATE_90 -> new Remap(0, 1, 0, -1, 0, h - 1, h, w);
+        case ROTATE_180 -> new Remap(-1, 0, w - 1, 0, -1, h - 1, w, h);
+        // Output (x, y) of a 270 degree rotation reads (w - y - 1, x)
+        case ROTATE_270 -> new Remap(0, -1, w - 1, 1, 0, 0, h, w);
+        case FLIP_H -> new Remap(-1, 0, w - 1, 0, 1, 0, w, h);
+        case FLIP_V -> new Remap(1, 0, 0, 0, -1, h - 1, w, h);
+      };
+      return current.compose(step);
+    }
+  }
+}
@@ -0,0 +1,627 @@
+package picture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A minimal PNG codec that decodes and encodes one row at a time, so that pictures too large for
+ * the heap can be converted without ever holding them whole.
+ *
+ * <p>The decoder handles non-interlaced 8-bit truecolour, truecolour with alpha and palette
+ * images, which is what almost every photo and scan is saved as. Alpha is dropped, the same as
+ * when {@link Picture} loads an image. Other PNGs are left to ImageIO, see {@link #canStream}.
+ * The encoder always writes 8-bit truecolour.
+ */
+final class PngCodec {
+
+  private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+  private static final int COLOUR_PALETTE = 3;
+  private static final int COLOUR_RGB = 2;
+  private static final int COLOUR_RGBA = 6;
+
+  private static final int FILTER_NONE = 0;
+  private static final int FILTER_SUB = 1;
+  private static final int FILTER_UP = 2;
+  private static final int FILTER_AVERAGE = 3;
+  private static final int FILTER_PAETH = 4;
+
+  /**
+   * The most bytes of compressed data written in one IDAT chunk.
+   */
+  private static final int IDAT_SIZE = 1 << 16;
+
+  /**
+   * The uncompressed bytes in each block of {@link #encode}, enough for deflate to find most of
+   * the repeats it would find in the whole image.
+   */
+  private static final int BLOCK_BYTES = 1 << 18;
+
+  private PngCodec() {
+  }
+
+  /**
+   * Returns true if in starts with the PNG signature, leaving in where it was. in must support
+   * mark and reset.
+   */
+  static boolean hasSignature(InputStream in) throws IOException {
+    in.mark(SIGNATURE.length);
+    byte[] signature = in.readNBytes(SIGNATURE.length);
+    in.reset();
+    return Arrays.equals(signature, SIGNATURE);
+  }
+
+  /**
+   * Returns true if a PNG with this header can be decoded row by row here.
+   */
+  static boolean canStream(int bitDepth, int colourType, int interlace) {
+    return bitDepth == 8 && interlace == 0
+        && (colourType == COLOUR_RGB || colourType == COLOUR_RGBA
+        || colourType == COLOUR_PALETTE);
+  }
+
+  /**
+   * Reads the rows of a PNG one after another as packed 0xRRGGBB pixels.
+   */
+  static final class RowReader implements Closeable {
+
+    private final DataInputStream chunks;
+    private final int width;
+    private final int height;
+    private final int colourType;
+    private final int bytesPerPixel;
+    private final boolean streamable;
+    private int[] palette;
+    private Inflater inflater;
+    private InputStream pixels;
+    private byte[] previous;
+    private byte[] current;
+    private int rowsRead;
+
+    /**
+     * Read the header of the PNG in in, up to its first image data.
+     *
+     * @throws IOException if in is not a PNG.
+     */
+    RowReader(InputStream in) throws IOException {
+      chunks = new DataInputStream(in);
+      byte[] signature = new byte[SIGNATURE.length];
+      chunks.readFully(signature);
+      if (!Arrays.equals(signature, SIGNATURE)) {
+        throw new IOException("Not a PNG file");
+      }
+      int length = chunks.readInt();
+      if (!type(chunks).equals("IHDR")) {
+        throw new IOException("PNG does not start with IHDR");
+      }
+      width = chunks.readInt();
+      height = chunks.readInt();
+      int bitDepth = chunks.readUnsignedByte();
+      colourType = chunks.readUnsignedByte();
+      chunks.skipNBytes(2);
+      int interlace = chunks.readUnsignedByte();
+      chunks.skipNBytes(length - 13 + 4);
+      streamable = canStream(bitDepth, colourType, interlace);
+      bytesPerPixel = switch (colourType) {
+        case COLOUR_RGB -> 3;
+        case COLOUR_RGBA -> 4;
+        default -> 1;
+      };
+    }
+
+    int getWidth() {
+      return width;
+    }
+
+    int getHeight() {
+      return height;
+    }
+
+    /**
+     * Returns true if the pixels of this PNG can be read with {@link #readRows}.
+     */
+    boolean isStreamable() {
+      return streamable;
+    }
+
+    /**
+     * Read the next rows of the image into dst, which must hold rows * width pixels.
+     */
+    void readRows(int[] dst, int rows) throws IOException {
+      if (!streamable) {
+        throw new IOException("PNG format cannot be read row by row");
+      }
+      if (pixels == null) {
+        start();
+      }
+      if (rowsRead + rows > height) {
+        throw new IOException("Only " + (height - rowsRead) + " rows left");
+      }
+      for (int row = 0; row < rows; row++) {
+        int filter = pixels.read();
+        if (filter < 0) {
+          throw new EOFException("PNG image data ended early");
+        }
+        readFully(pixels, current);
+        unfilter(filter, current, previous, bytesPerPixel);
+        unpack(current, dst, row * width);
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        rowsRead++;
+      }
+    }
+
+    /**
+     * Skip to the first IDAT chunk, reading the palette on the way.
+     */
+    private void start() throws IOException {
+      while (true) {
+        int length = chunks.readInt();
+        String type = type(chunks);
+        if (type.equals("IDAT")) {
+          inflater = new Inflater();
+          pixels = new InflaterInputStream(new ImageData(chunks, length), inflater, 1 << 16);
+          break;
+        }
+        if (type.equals("PLTE")) {
+          palette = new int[length / 3];
+          for (int i = 0; i < palette.length; i++) {
+            palette[i] = (chunks.readUnsignedByte() << 16)
+                | (chunks.readUnsignedByte() << 8) | chunks.readUnsignedByte();
+          }
+          chunks.skipNBytes(length % 3 + 4);
+        } else {
+          chunks.skipNBytes(length + 4L);
+        }
+      }
+      if (colourType == COLOUR_PALETTE && palette == null) {
+        throw new IOException("Palette PNG has no PLTE chunk");
+      }
+      previous = new byte[width * bytesPerPixel];
+      current = new byte[width * bytesPerPixel];
+    }
+
+    private void unpack(byte[] row, int[] dst, int offset) {
+      switch (colourType) {
+        case COLOUR_PALETTE -> {
+          for (int x = 0; x < width; x++) {
+            dst[offset + x] = palette[row[x] & 0xff];
+          }
+        }
+        default -> {
+          for (int x = 0, i = 0; x < width; x++, i += bytesPerPixel) {
+            dst[offset + x] = ((row[i] & 0xff) << 16)
+                | ((row[i + 1] & 0xff) << 8) | (row[i + 2] & 0xff);
+          }
+        }
+      }
+    }
+
+    /**
+     * Release the inflater without closing the stream, for callers that own the stream.
+     */
+    void end() {
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      end();
+      chunks.close();
+    }
+  }
+
+  /**
+   * Writes 8-bit truecolour PNGs from packed 0xRRGGBB rows, one row after another.
+   */
+  static final class RowWriter implements Closeable {
+
+    private final DataOutputStream out;
+    private final DeflaterOutputStream compressed;
+    private final Deflater deflater;
+    private final int width;
+    private final int height;
+    private byte[] previous;
+    private byte[] current;
+    private final byte[][] candidates = new byte[5][];
+    private int rowsWritten;
+
+    /**
+     * Write the header of a width by height PNG to out, compressing rows at the given deflate
+     * level (0 to 9, or -1 for the default).
+     */
+    RowWriter(OutputStream out, int width, int height, int level) throws IOException {
+      this.out = new DataOutputStream(out);
+      this.width = width;
+      this.height = height;
+      writeHeader(this.out, width, height);
+      deflater = new Deflater(level);
+      compressed = new DeflaterOutputStream(new ImageDataWriter(this.out), deflater, IDAT_SIZE);
+      previous = new byte[width * 3];
+      current = new byte[width * 3];
+      for (int i = 0; i < candidates.length; i++) {
+        candidates[i] = new byte[width * 3];
+      }
+    }
+
+    /**
+     * Write rows rows of packed pixels from src, starting at offset.
+     */
+    void writeRows(int[] src, int offset, int rows) throws IOException {
+      if (rowsWritten + rows > height) {
+        throw new IOException("Only " + (height - rowsWritten) + " rows left");
+      }
+      for (int row = 0; row < rows; row++) {
+        unpackRow(src, offset + row * width, current);
+        int filter = chooseFilter(current, previous, candidates);
+        compressed.write(filter);
+        compressed.write(candidates[filter]);
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        rowsWritten++;
+      }
+    }
+
+    /**
+     * Finish the image data and write the end of the PNG. Does not close the underlying stream.
+     */
+    void finish() throws IOException {
+      if (rowsWritten != height) {
+        throw new IOException("Wrote " + rowsWritten + " of " + height + " rows");
+      }
+      compressed.finish();
+      compressed.flush();
+      deflater.end();
+      writeChunk(out, "IEND", new byte[0], 0);
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Write the whole width by height picture in pixels as a PNG to out, at the given deflate level
+   * (0 to 9, or -1 for the default). Blocks of rows are filtered and deflated independently, in
+   * parallel when {@link Picture#setParallelism} allows, and joined into one zlib stream. Every
+   * block but the last ends with a sync flush, which ends it on a byte boundary, and the Adler-32
+   * checksums of the blocks are combined. Blocks do not share a dictionary, which costs a little
+   * compression at each block boundary.
+   */
+  static void encode(int[] pixels, int width, int height, int level, OutputStream out)
+      throws IOException {
+    int rowBytes = 3 * width + 1;
+    int blockRows = Math.max(1, BLOCK_BYTES / rowBytes);
+    int blocks = (height + blockRows - 1) / blockRows;
+    byte[][] compressed = new byte[blocks][];
+    long[] checksums = new long[blocks];
+    // Each block counts as one row of the pixels it holds
+    RowBands.forEach(width * blockRows, blocks, (fromBlock, toBlock) -> {
+      Deflater deflater = new Deflater(level, true);
+      byte[] previous = new byte[3 * width];
+      byte[] current = new byte[3 * width];
+      byte[][] candidates = new byte[5][3 * width];
+      byte[] buffer = new byte[IDAT_SIZE];
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      Adler32 checksum = new Adler32();
+      for (int b = fromBlock; b < toBlock; b++) {
+        int first = b * blockRows;
+        int last = Math.min(height, first + blockRows);
+        // The filters of the first row of a block look at the last row of the one before
+        if (first == 0) {
+          Arrays.fill(previous, (byte) 0);
+        } else {
+          unpackRow(pixels, (first - 1) * width, previous);
+        }
+        byte[] raw = new byte[(last - first) * rowBytes];
+        for (int y = first, at = 0; y < last; y++, at += rowBytes) {
+          unpackRow(pixels, y * width, current);
+          int filter = chooseFilter(current, previous, candidates);
+          raw[at] = (byte) filter;
+          System.arraycopy(candidates[filter], 0, raw, at + 1, rowBytes - 1);
+          byte[] swap = previous;
+          previous = current;
+          current = swap;
+        }
+        checksum.reset();
+        checksum.update(raw);
+        checksums[b] = checksum.getValue();
+        deflater.reset();
+        deflater.setInput(raw);
+        block.reset();
+        if (b == blocks - 1) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            block.write(buffer, 0, deflater.deflate(buffer));
+          }
+        } else {
+          int length;
+          do {
+            length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            block.write(buffer, 0, length);
+          } while (length == buffer.length);
+        }
+        compressed[b] = block.toByteArray();
+      }
+      deflater.end();
+    });
+
+    DataOutputStream data = new DataOutputStream(out);
+    writeHeader(data, width, height);
+    DataOutputStream stream = new DataOutputStream(new ImageDataWriter(data));
+    stream.writeShort(zlibHeader(level));
+    long adler = 1;
+    for (int b = 0; b < blocks; b++) {
+      stream.write(compressed[b]);
+      int rows = Math.min(height - b * blockRows, blockRows);
+      adler = combineAdler32(adler, checksums[b], (long) rows * rowBytes);
+    }
+    stream.writeInt((int) adler);
+    stream.flush();
+    writeChunk(data, "IEND", new byte[0], 0);
+    data.flush();
+  }
+
+  /**
+   * Returns the two byte zlib header for a deflate stream at level, with its check bits.
+   */
+  private static int zlibHeader(int level) {
+    if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+      return 0x789c;
+    }
+    if (level <= 1) {
+      return 0x7801;
+    }
+    return level <= 5 ? 0x785e : 0x78da;
+  }
+
+  /**
+   * Returns the Adler-32 checksum of two byte sequences joined, given the checksum of each and
+   * the length of the second, as zlib's adler32_combine does.
+   */
+  static long combineAdler32(long first, long second, long secondLength) {
+    long base = 65521;
+    long remainder = secondLength % base;
+    long sum1 = first & 0xffff;
+    long sum2 = remainder * sum1 % base;
+    sum1 += (second & 0xffff) + base - 1;
+    sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + base - remainder;
+    if (sum1 >= base) {
+      sum1 -= base;
+    }
+    if (sum1 >= base) {
+      sum1 -= base;
+    }
+    if (sum2 >= base << 1) {
+      sum2 -= base << 1;
+    }
+    if (sum2 >= base) {
+      sum2 -= base;
+    }
+    return sum1 | (sum2 << 16);
+  }
+
+  private static void writeHeader(DataOutputStream out, int width, int height)
+      throws IOException {
+    out.write(SIGNATURE);
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream fields = new DataOutputStream(header);
+    fields.writeInt(width);
+    fields.writeInt(height);
+    fields.writeByte(8);
+    fields.writeByte(COLOUR_RGB);
+    fields.writeByte(0);
+    fields.writeByte(0);
+    fields.writeByte(0);
+    writeChunk(out, "IHDR", header.toByteArray(), header.size());
+  }
+
+  /**
+   * Unpack one row of packed pixels from src, starting at offset, into RGB bytes.
+   */
+  private static void unpackRow(int[] src, int offset, byte[] row) {
+    for (int x = offset, i = 0; i < row.length; x++, i += 3) {
+      int rgb = src[x];
+      row[i] = (byte) (rgb >> 16);
+      row[i + 1] = (byte) (rgb >> 8);
+      row[i + 2] = (byte) rgb;
+    }
+  }
+
+  /**
+   * Fill candidates with row filtered by every filter type and return the type whose output has
+   * the smallest sum of absolute values, the heuristic recommended by the PNG specification.
+   */
+  static int chooseFilter(byte[] row, byte[] previous, byte[][] candidates) {
+    // Every prediction is made in one branch-free pass, then each candidate is summed
+    long[] sums = new long[5];
+    byte[] none = candidates[FILTER_NONE];
+    byte[] sub = candidates[FILTER_SUB];
+    byte[] up = candidates[FILTER_UP];
+    byte[] average = candidates[FILTER_AVERAGE];
+    byte[] paeth = candidates[FILTER_PAETH];
+    System.arraycopy(row, 0, none, 0, row.length);
+    for (int i = 0; i < row.length; i++) {
+      int above = previous[i] & 0xff;
+      int left = i >= 3 ? row[i - 3] & 0xff : 0;
+      int upLeft = i >= 3 ? previous[i - 3] & 0xff : 0;
+      sub[i] = (byte) (row[i] - left);
+      up[i] = (byte) (row[i] - above);
+      average[i] = (byte) (row[i] - ((left + above) >>> 1));
+      paeth[i] = (byte) (row[i] - paeth(left, above, upLeft));
+    }
+    for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+      byte[] out = candidates[filter];
+      long sum = 0;
+      for (byte value : out) {
+        sum += Math.abs(value);
+      }
+      sums[filter] = sum;
+    }
+    int best = FILTER_NONE;
+    for (int filter = FILTER_SUB; filter <= FILTER_PAETH; filter++) {
+      if (sums[filter] < sums[best]) {
+        best = filter;
+      }
+    }
+    return best;
+  }
+
+  private static void unfilter(int filter, byte[] row, byte[] previous, int bytesPerPixel)
+      throws IOException {
+    for (int i = 0; i < row.length; i++) {
+      int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+      int up = previous[i] & 0xff;
+      int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xff : 0;
+      int predicted = switch (filter) {
+        case FILTER_NONE -> 0;
+        case FILTER_SUB -> left;
+        case FILTER_UP -> up;
+        case FILTER_AVERAGE -> (left + up) >>> 1;
+        case FILTER_PAETH -> paeth(left, up, upLeft);
+        default -> throw new IOException("Unknown PNG filter type " + filter);
+      };
+      row[i] = (byte) (row[i] + predicted);
+    }
+  }
+
+  private static int paeth(int left, int up, int upLeft) {
+    int estimate = left + up - upLeft;
+    int distanceLeft = Math.abs(estimate - left);
+    int distanceUp = Math.abs(estimate - up);
+    int distanceUpLeft = Math.abs(estimate - upLeft);
+    if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+      return left;
+    }
+    return distanceUp <= distanceUpLeft ? up : upLeft;
+  }
+
+  private static String type(DataInputStream in) throws IOException {
+    byte[] type = new byte[4];
+    in.readFully(type);
+    return new String(type, StandardCharsets.US_ASCII);
+  }
+
+  private static void readFully(InputStream in, byte[] bytes) throws IOException {
+    int read = in.readNBytes(bytes, 0, bytes.length);
+    if (read < bytes.length) {
+      throw new EOFException("PNG image data ended early");
+    }
+  }
+
+  static void writeChunk(DataOutputStream out, String type, byte[] data, int length)
+      throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    out.writeInt(length);
+    out.write(typeBytes);
+    out.write(data, 0, length);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /**
+   * The concatenated data of consecutive IDAT chunks, starting inside the first one.
+   */
+  private static final class ImageData extends InputStream {
+
+    private final DataInputStream chunks;
+    private int remaining;
+    private boolean ended;
+
+    ImageData(DataInputStream chunks, int firstLength) {
+      this.chunks = chunks;
+      this.remaining = firstLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      while (remaining == 0) {
+        if (ended) {
+          return -1;
+        }
+        chunks.skipNBytes(4);
+        int next = chunks.readInt();
+        if (!type(chunks).equals("IDAT")) {
+          ended = true;
+          return -1;
+        }
+        remaining = next;
+      }
+      int read = chunks.read(bytes, offset, Math.min(length, remaining));
+      if (read < 0) {
+        throw new EOFException("PNG image data ended early");
+      }
+      remaining -= read;
+      return read;
+    }
+  }
+
+  /**
+   * Splits what is written to it into IDAT chunks.
+   */
+  private static final class ImageDataWriter extends OutputStream {
+
+    private final DataOutputStream out;
+    private final byte[] buffer = new byte[IDAT_SIZE];
+    private int size;
+
+    ImageDataWriter(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        int copied = Math.min(length, buffer.length - size);
+        System.arraycopy(bytes, offset, buffer, size, copied);
+        size += copied;
+        offset += copied;
+        length -= copied;
+        if (size == buffer.length) {
+          flush();
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (size > 0) {
+        writeChunk(out, "IDAT", buffer, size);
+        size = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package picture;
+
+/**
+ * The per-pixel loops of invert, grayscale and blend over packed 0xRRGGBB arrays. The scalar
+ * implementation here is always available. When the <tt>jdk.incubator.vector</tt> module is
+ * present, {@link #get()} returns {@link VectorKernels} instead, which produces bit-identical
+ * output using SIMD lanes. Setting the system property <tt>picture.vector</tt> to <tt>false</tt>
+ * forces the scalar kernels.
+ */
+class PointKernels {
+
+  private static final PointKernels SCALAR = new PointKernels();
+
+  private static final PointKernels SELECTED = select();
+
+  /**
+   * The number of interleaved accumulators in {@link #hash(int[])}. It is fixed, rather than
+   * the vector length, so that every implementation returns the same hash.
+   */
+  static final int HASH_LANES = 8;
+
+  /**
+   * Returns the fastest kernels available in this JVM.
+   */
+  static PointKernels get() {
+    return SELECTED;
+  }
+
+  static PointKernels scalar() {
+    return SCALAR;
+  }
+
+  private static PointKernels select() {
+    if (!Boolean.parseBoolean(System.getProperty("picture.vector", "true"))
+        || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+      return SCALAR;
+    }
+    try {
+      // Loaded reflectively so that this class links without the vector module
+      return (PointKernels) Class.forName("picture.VectorKernels")
+          .getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return SCALAR;
+    }
+  }
+
+  /**
+   * Returns a short name for these kernels, for diagnostics.
+   */
+  String name() {
+    return "scalar";
+  }
+
+  /**
+   * Write the inverse of src[from, to) into dst[from, to).
+   */
+  void invert(int[] src, int[] dst, int from, int to) {
+    for (int i = from; i < to; i++) {
+      dst[i] = Picture.invert(src[i]);
+    }
+  }
+
+  /**
+   * Write the grayscale of src[from, to) into dst[from, to).
+   */
+  void grayscale(int[] src, int[] dst, int from, int to) {
+    for (int i = from; i < to; i++) {
+      dst[i] = Picture.grayscale(src[i]);
+    }
+  }
+
+  /**
+   * Add the channels of length pixels of src, starting at offset, to the running totals.
+   */
+  void accumulate(int[] src, int offset, int[] red, int[] green, int[] blue, int length) {
+    for (int x = 0; x < length; x++) {
+      int rgb = src[offset + x];
+      red[x] += Picture.red(rgb);
+      green[x] += Picture.green(rgb);
+      blue[x] += Picture.blue(rgb);
+    }
+  }
+
+  /**
+   * Write length pixels of the totals divided by divisor, rounded down, into dst at offset.
+   */
+  void average(int[] red, int[] green, int[] blue, int divisor, int[] dst, int offset,
+      int length) {
+    for (int x = 0; x < length; x++) {
+      dst[offset + x] = Picture.pack(red[x] / divisor, green[x] / divisor, blue[x] / divisor);
+    }
+  }
+
+  /**
+   * Returns a polynomial hash of src. Lane k hashes the pixels at k, k + HASH_LANES, ... so that
+   * the lanes are independent, and the lanes and any remainder are then hashed in order.
+   */
+  int hash(int[] src) {
+    int[] lanes = new int[HASH_LANES];
+    int end = src.length - src.length % HASH_LANES;
+    for (int i = 0; i < end; i += HASH_LANES) {
+      for (int k = 0; k < HASH_LANES; k++) {
+        lanes[k] = 31 * lanes[k] + src[i + k];
+      }
+    }
+    return combine(lanes, src, end);
+  }
+
+  static int combine(int[] lanes, int[] src, int from) {
+    int hash = 1;
+    for (int lane : lanes) {
+      hash = 31 * hash + lane;
+    }
+    for (int i = from; i < src.length; i++) {
+      hash = 31 * hash + src[i];
+    }
+    return hash;
+  }
+}
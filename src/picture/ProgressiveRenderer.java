@@ -0,0 +1,206 @@
+package picture;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders a {@link Pipeline} over a large picture viewport first. The pixels inside the viewport
+ * are computed before {@link #render} returns, so that a preview can be shown at once. The rest of
+ * the result is then filled in tile by tile on an executor, nearest to the viewport first, until
+ * it is complete or the rendering is cancelled.
+ */
+public final class ProgressiveRenderer {
+
+  /**
+   * Told about the progress of a rendering. Every method is called on a thread of the executor,
+   * unless the viewport covers the whole result, and does nothing by default.
+   */
+  public interface Listener {
+
+    /**
+     * Called once the pixels of the output inside tile are final.
+     */
+    default void tileDone(Rectangle tile) {
+    }
+
+    /**
+     * Called once every pixel of output is final. Not called if the rendering was cancelled.
+     */
+    default void completed(Picture output) {
+    }
+
+    /**
+     * Called once if computing a tile threw cause, after which no more tiles are computed.
+     */
+    default void failed(Throwable cause) {
+    }
+  }
+
+  /**
+   * A rendering in progress, whose output is filled in as its tiles complete.
+   */
+  public static final class Rendering {
+
+    private final Picture output;
+    private final CompletableFuture<Picture> done = new CompletableFuture<>();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    private Rendering(Picture output) {
+      this.output = output;
+    }
+
+    /**
+     * Returns the picture being rendered into. Its pixels outside the viewport are black until
+     * their tile is done.
+     */
+    public Picture getOutput() {
+      return output;
+    }
+
+    /**
+     * Stop computing tiles. Tiles already started are finished, but no more are begun.
+     *
+     * @return false if the rendering had already completed, failed or been cancelled.
+     */
+    public boolean cancel() {
+      return stopped.compareAndSet(false, true) && done.cancel(false);
+    }
+
+    public boolean isCancelled() {
+      return done.isCancelled();
+    }
+
+    /**
+     * Returns true once the rendering has completed, failed or been cancelled.
+     */
+    public boolean isDone() {
+      return done.isDone();
+    }
+
+    /**
+     * Wait for every tile and return the output.
+     *
+     * @throws java.util.concurrent.CancellationException if the rendering was cancelled.
+     * @throws java.util.concurrent.CompletionException   if computing a tile failed.
+     */
+    public Picture join() {
+      return done.join();
+    }
+  }
+
+  private final Executor executor;
+  private final int tileSize;
+
+  /**
+   * Construct a renderer that computes tiles of at most tileSize by tileSize pixels on executor.
+   */
+  public ProgressiveRenderer(Executor executor, int tileSize) {
+    if (tileSize < 1) {
+      throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+    }
+    this.executor = executor;
+    this.tileSize = tileSize;
+  }
+
+  /**
+   * Compute the pixels of pipeline applied to input inside viewport, then start filling in the
+   * rest of the result in the background. The input must not be modified until the rendering is
+   * done.
+   *
+   * @param input    the picture to process.
+   * @param pipeline the operations to apply.
+   * @param viewport the part of the result to compute first, in the co-ordinates of the result.
+   * @param listener told as each remaining tile is done, and when the rendering ends.
+   * @return the rendering, whose output already holds every pixel inside viewport.
+   * @throws IllegalArgumentException if viewport is empty or reaches outside the result.
+   */
+  public Rendering render(Picture input, Pipeline pipeline, Rectangle viewport,
+      Listener listener) {
+    Picture preview = pipeline.apply(input, viewport);
+    Rectangle bounds = resultBounds(input, pipeline);
+    Rendering rendering = new Rendering(new Picture(bounds.width, bounds.height));
+    paste(preview, rendering.output, viewport);
+
+    List<Rectangle> tiles = new ArrayList<>();
+    for (int y = 0; y < bounds.height; y += tileSize) {
+      for (int x = 0; x < bounds.width; x += tileSize) {
+        Rectangle tile = new Rectangle(x, y, tileSize, tileSize).intersection(bounds);
+        if (!viewport.contains(tile)) {
+          tiles.add(tile);
+        }
+      }
+    }
+    double centreX = viewport.getCenterX();
+    double centreY = viewport.getCenterY();
+    tiles.sort(Comparator.comparingDouble(tile -> Math.hypot(
+        tile.getCenterX() - centreX, tile.getCenterY() - centreY)));
+
+    AtomicInteger remaining = new AtomicInteger(tiles.size());
+    if (tiles.isEmpty()) {
+      finish(rendering, listener);
+    }
+    for (Rectangle tile : tiles) {
+      try {
+        executor.execute(() -> {
+          if (rendering.stopped.get()) {
+            return;
+          }
+          try {
+            paste(pipeline.apply(input, tile), rendering.output, tile);
+          } catch (RuntimeException | Error e) {
+            fail(rendering, listener, e);
+            return;
+          }
+          listener.tileDone(tile);
+          if (remaining.decrementAndGet() == 0) {
+            finish(rendering, listener);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        fail(rendering, listener, e);
+        break;
+      }
+    }
+    return rendering;
+  }
+
+  /**
+   * Returns the bounds of the result of pipeline applied to input, which only depend on how many
+   * quarter turns it makes.
+   */
+  private static Rectangle resultBounds(Picture input, Pipeline pipeline) {
+    boolean swap = pipeline.swapsAxes();
+    return new Rectangle(swap ? input.getHeight() : input.getWidth(),
+        swap ? input.getWidth() : input.getHeight());
+  }
+
+  private static void finish(Rendering rendering, Listener listener) {
+    if (rendering.stopped.compareAndSet(false, true)) {
+      rendering.done.complete(rendering.output);
+      listener.completed(rendering.output);
+    }
+  }
+
+  private static void fail(Rendering rendering, Listener listener, Throwable cause) {
+    if (rendering.stopped.compareAndSet(false, true)) {
+      rendering.done.completeExceptionally(cause);
+      listener.failed(cause);
+    }
+  }
+
+  private static void paste(Picture tile, Picture dst, Rectangle region) {
+    int[] in = tile.dataForReading();
+    int[] out = dst.data();
+    for (int row = 0; row < region.height; row++) {
+      System.arraycopy(in, row * region.width,
+          out, (region.y + row) * dst.getWidth() + region.x, region.width);
+    }
+  }
+}
@@ -0,0 +1,429 @@
+package picture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * A picture stored in a raw file that is memory-mapped a strip at a time, for pictures too large
+ * to hold in the heap. The file is a 16 byte header of four big-endian ints (the magic number
+ * {@link #MAGIC}, the format version, the width and the height) followed by every pixel as a
+ * big-endian 0x00RRGGBB int in row-major order.
+ *
+ * <p>The operations mirror those of {@link Picture}, but each writes its result to a new raw file
+ * and only ever holds one strip of pixels in memory. Strips are processed by the ordinary Picture
+ * operations, so the results are the same as those of Picture on the whole image.
+ */
+public class RawPicture implements Closeable {
+
+  /**
+   * The first four bytes of every raw picture, "PRAW" in ASCII.
+   */
+  public static final int MAGIC = 0x50524157;
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = 16;
+
+  /**
+   * The most bytes mapped at once. Mappings are made lazily, so only touched pages are read.
+   */
+  private static final long MAP_BYTES = 1L << 28;
+
+  static final int DEFAULT_STRIP_PIXELS = 1 << 22;
+
+  private final FileChannel channel;
+  private final FileChannel.MapMode mode;
+  private final int width;
+  private final int height;
+  private int stripPixels = DEFAULT_STRIP_PIXELS;
+
+  private RawPicture(FileChannel channel, FileChannel.MapMode mode, int width, int height) {
+    this.channel = channel;
+    this.mode = mode;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Create a new raw picture file of the given dimensions, replacing any existing file.
+   */
+  public static RawPicture create(Path path, int width, int height) throws IOException {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("Invalid dimensions " + width + "x" + height);
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).flip();
+    channel.write(header, 0);
+    // Extends the file to its full size without writing the pixels
+    channel.write(ByteBuffer.allocate(1), HEADER_BYTES + 4L * width * height - 1);
+    return new RawPicture(channel, FileChannel.MapMode.READ_WRITE, width, height);
+  }
+
+  /**
+   * Open an existing raw picture file for reading.
+   *
+   * @throws IOException if path is not a raw picture, or is not as long as its dimensions need.
+   */
+  public static RawPicture open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    channel.read(header, 0);
+    header.flip();
+    if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC
+        || header.getInt() != VERSION) {
+      channel.close();
+      throw new IOException("Not a raw picture: " + path);
+    }
+    int width = header.getInt();
+    int height = header.getInt();
+    // A truncated or corrupt file would otherwise only fail once a strip past its end is mapped
+    long length = channel.size();
+    if (width < 1 || height < 1 || length != HEADER_BYTES + 4L * width * height) {
+      channel.close();
+      throw new IOException("Raw picture " + path + " of " + width + "x" + height
+          + " has the wrong length: " + length);
+    }
+    return new RawPicture(channel, FileChannel.MapMode.READ_ONLY, width, height);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Set roughly how many pixels each strip holds, and so how much memory operations use.
+   */
+  public void setStripPixels(int pixels) {
+    if (pixels < 1) {
+      throw new IllegalArgumentException("Strips must hold at least one pixel");
+    }
+    stripPixels = pixels;
+  }
+
+  private int stripRows(int rowWidth) {
+    return Math.max(1, stripPixels / rowWidth);
+  }
+
+  /**
+   * Returns rows fromRow (inclusive) to toRow (exclusive) as a Picture.
+   */
+  public Picture readRows(int fromRow, int toRow) throws IOException {
+    return readRegion(0, fromRow, width, toRow - fromRow);
+  }
+
+  /**
+   * Returns the w by h pixels whose top-left corner is (x, y) as a Picture.
+   */
+  public Picture readRegion(int x, int y, int w, int h) throws IOException {
+    Picture region = new Picture(w, h);
+    transfer(x, y, w, h, region.data(), false);
+    return region;
+  }
+
+  /**
+   * Overwrite the rows starting at fromRow with the pixels of rows, which must be as wide as this
+   * picture.
+   */
+  public void writeRows(int fromRow, Picture rows) throws IOException {
+    writeRegion(0, fromRow, rows);
+  }
+
+  /**
+   * Overwrite the pixels whose top-left corner is (x, y) with the pixels of region.
+   */
+  public void writeRegion(int x, int y, Picture region) throws IOException {
+    transfer(x, y, region.getWidth(), region.getHeight(), region.data(), true);
+  }
+
+  /**
+   * Copy the w by h pixels at (x, y) between this file and pixels, mapping at most MAP_BYTES of
+   * whole rows at a time.
+   */
+  private void transfer(int x, int y, int w, int h, int[] pixels, boolean write)
+      throws IOException {
+    if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+      throw new IndexOutOfBoundsException("Region " + w + "x" + h + " at (" + x + ", " + y
+          + ") is outside a " + width + "x" + height + " picture");
+    }
+    if (write && mode != FileChannel.MapMode.READ_WRITE) {
+      throw new IOException("Raw picture was opened read-only");
+    }
+    int rowsPerMap = (int) Math.max(1, MAP_BYTES / (4L * width));
+    for (int first = y; first < y + h; first += rowsPerMap) {
+      int rows = Math.min(rowsPerMap, y + h - first);
+      IntBuffer mapped = channel.map(mode, HEADER_BYTES + 4L * first * width,
+          4L * rows * width).asIntBuffer();
+      if (w == width) {
+        // Whole rows are contiguous in both the file and pixels
+        if (write) {
+          mapped.put(0, pixels, (first - y) * w, rows * w);
+        } else {
+          mapped.get(0, pixels, (first - y) * w, rows * w);
+        }
+        continue;
+      }
+      for (int row = 0; row < rows; row++) {
+        int offset = (first - y + row) * w;
+        if (write) {
+          mapped.put(row * width + x, pixels, offset, w);
+        } else {
+          mapped.get(row * width + x, pixels, offset, w);
+        }
+      }
+    }
+  }
+
+  /**
+   * Convert a PNG to a raw picture, decoding one strip of rows at a time. PNGs that cannot be
+   * decoded row by row, such as interlaced or 16-bit ones, are loaded whole through Picture.
+   */
+  public static RawPicture fromPng(Path png, Path raw) throws IOException {
+    return fromPng(png, raw, DEFAULT_STRIP_PIXELS);
+  }
+
+  /**
+   * Convert a PNG to a raw picture like {@link #fromPng(Path, Path)}, with strips of roughly
+   * stripPixels pixels, which the returned picture keeps for its own operations.
+   */
+  static RawPicture fromPng(Path png, Path raw, int stripPixels) throws IOException {
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(png), 1 << 16);
+        PngCodec.RowReader reader = new PngCodec.RowReader(in)) {
+      if (!reader.isStreamable()) {
+        Picture whole = new Picture(png.toString());
+        RawPicture out = create(raw, whole.getWidth(), whole.getHeight());
+        out.setStripPixels(stripPixels);
+        out.writeRows(0, whole);
+        return out;
+      }
+      RawPicture out = create(raw, reader.getWidth(), reader.getHeight());
+      out.setStripPixels(stripPixels);
+      int stripRows = out.stripRows(out.width);
+      for (int y = 0; y < out.height; y += stripRows) {
+        Picture strip = new Picture(out.width, Math.min(stripRows, out.height - y));
+        reader.readRows(strip.data(), strip.getHeight());
+        out.writeRows(y, strip);
+      }
+      return out;
+    }
+  }
+
+  /**
+   * Write this picture as a PNG, encoding one strip of rows at a time.
+   */
+  public void toPng(Path png) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(png), 1 << 16);
+        PngCodec.RowWriter writer =
+            new PngCodec.RowWriter(out, width, height, Deflater.DEFAULT_COMPRESSION)) {
+      int stripRows = stripRows(width);
+      for (int y = 0; y < height; y += stripRows) {
+        Picture strip = readRows(y, Math.min(y + stripRows, height));
+        writer.writeRows(strip.data(), 0, strip.getHeight());
+      }
+      writer.finish();
+    }
+  }
+
+  /**
+   * Work done on one strip of rows, which is written back to the same rows of the output.
+   */
+  private interface StripOperation {
+    void apply(Picture strip);
+  }
+
+  private RawPicture mapRows(Path output, StripOperation operation) throws IOException {
+    RawPicture out = create(output, width, height);
+    out.stripPixels = stripPixels;
+    int stripRows = stripRows(width);
+    for (int y = 0; y < height; y += stripRows) {
+      Picture strip = readRows(y, Math.min(y + stripRows, height));
+      operation.apply(strip);
+      out.writeRows(y, strip);
+    }
+    return out;
+  }
+
+  public RawPicture invert(Path output) throws IOException {
+    return mapRows(output, Picture::invertInPlace);
+  }
+
+  public RawPicture grayscale(Path output) throws IOException {
+    return mapRows(output, Picture::grayscaleInPlace);
+  }
+
+  public RawPicture flipHorizontal(Path output) throws IOException {
+    return mapRows(output, Picture::flipHorizontalInPlace);
+  }
+
+  public RawPicture flipVertical(Path output) throws IOException {
+    // Each strip is flipped and written to the mirrored rows
+    RawPicture out = create(output, width, height);
+    out.stripPixels = stripPixels;
+    int stripRows = stripRows(width);
+    for (int y = 0; y < height; y += stripRows) {
+      int end = Math.min(y + stripRows, height);
+      Picture strip = readRows(y, end);
+      strip.flipVerticalInPlace();
+      out.writeRows(height - end, strip);
+    }
+    return out;
+  }
+
+  public RawPicture rotate180(Path output) throws IOException {
+    RawPicture out = create(output, width, height);
+    out.stripPixels = stripPixels;
+    int stripRows = stripRows(width);
+    for (int y = 0; y < height; y += stripRows) {
+      int end = Math.min(y + stripRows, height);
+      Picture strip = readRows(y, end);
+      strip.rotate180InPlace();
+      out.writeRows(height - end, strip);
+    }
+    return out;
+  }
+
+  public RawPicture rotate90(Path output) throws IOException {
+    // The w by h tile at (x, y) becomes the h by w tile at (height - y - h, x)
+    RawPicture out = create(output, height, width);
+    out.stripPixels = stripPixels;
+    int side = tileSide();
+    for (int y = 0; y < height; y += side) {
+      int h = Math.min(side, height - y);
+      for (int x = 0; x < width; x += side) {
+        int w = Math.min(side, width - x);
+        out.writeRegion(height - y - h, x, readRegion(x, y, w, h).rotate90());
+      }
+    }
+    return out;
+  }
+
+  public RawPicture rotate270(Path output) throws IOException {
+    // The w by h tile at (x, y) becomes the h by w tile at (y, width - x - w)
+    RawPicture out = create(output, height, width);
+    out.stripPixels = stripPixels;
+    int side = tileSide();
+    for (int y = 0; y < height; y += side) {
+      int h = Math.min(side, height - y);
+      for (int x = 0; x < width; x += side) {
+        int w = Math.min(side, width - x);
+        out.writeRegion(y, width - x - w, readRegion(x, y, w, h).rotate270());
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Returns the side of the square tiles that quarter turns are done in, a strip's worth of
+   * pixels. Each row of a tile spans whole pages of both files, where a band of a few columns
+   * down a tall picture would read every page of it once per band.
+   */
+  private int tileSide() {
+    return Math.max(1, (int) Math.sqrt(stripPixels));
+  }
+
+  /**
+   * Blur like {@link Picture#blur(int, BorderMode)}. Each strip is read with radius extra rows
+   * above and below it, so that its pixels see the same neighbours as in the whole picture.
+   */
+  public RawPicture blur(Path output, int radius, BorderMode border) throws IOException {
+    Blur.checkRadius(radius);
+    RawPicture out = create(output, width, height);
+    out.stripPixels = stripPixels;
+    int stripRows = stripRows(width);
+    for (int y = 0; y < height; y += stripRows) {
+      int end = Math.min(y + stripRows, height);
+      Picture extended = readWithHalo(y, end, radius, border);
+      Picture blurred = extended.blur(radius, border);
+      Picture strip = new Picture(width, end - y);
+      int[] rows = strip.data();
+      for (int row = y; row < end; row++) {
+        boolean kept = border == BorderMode.KEEP && (row < radius || row >= height - radius);
+        // Kept rows near the real top and bottom edges are copied from the source
+        Picture from = kept ? extended : blurred;
+        System.arraycopy(from.data(), (row - y + radius) * width, rows, (row - y) * width, width);
+      }
+      out.writeRows(y, strip);
+    }
+    return out;
+  }
+
+  /**
+   * Returns rows [fromRow - radius, toRow + radius), where rows outside the picture are those
+   * border maps them to.
+   */
+  private Picture readWithHalo(int fromRow, int toRow, int radius, BorderMode border)
+      throws IOException {
+    int first = Math.max(0, fromRow - radius);
+    int last = Math.min(height, toRow + radius);
+    Picture inside = readRows(first, last);
+    Picture extended = new Picture(width, toRow - fromRow + 2 * radius);
+    int[] rows = extended.data();
+    for (int row = fromRow - radius; row < toRow + radius; row++) {
+      int source = border.remap(row, height);
+      int offset = (row - fromRow + radius) * width;
+      if (source >= first && source < last) {
+        System.arraycopy(inside.data(), (source - first) * width, rows, offset, width);
+      } else {
+        System.arraycopy(readRows(source, source + 1).data(), 0, rows, offset, width);
+      }
+    }
+    return extended;
+  }
+
+  /**
+   * Make a mosaic like {@link Picture#mosaic(List, int)}, copying one tile at a time straight
+   * from the input it comes from.
+   */
+  public static RawPicture mosaic(List<RawPicture> inputs, int tileSize, Path output)
+      throws IOException {
+    if (inputs.isEmpty() || tileSize < 1) {
+      throw new IllegalArgumentException(
+          "A mosaic needs inputs and a positive tile size: " + tileSize);
+    }
+    int minWidth = Integer.MAX_VALUE;
+    int minHeight = Integer.MAX_VALUE;
+    for (RawPicture input : inputs) {
+      minWidth = Math.min(minWidth, input.width);
+      minHeight = Math.min(minHeight, input.height);
+    }
+    minWidth -= minWidth % tileSize;
+    minHeight -= minHeight % tileSize;
+    RawPicture out = create(output, minWidth, minHeight);
+    int numPictures = inputs.size();
+    for (int y = 0; y < minHeight; y += tileSize) {
+      Picture strip = new Picture(minWidth, tileSize);
+      for (int x = 0; x < minWidth; x += tileSize) {
+        RawPicture input = inputs.get((x / tileSize + y / tileSize) % numPictures);
+        int[] tile = input.readRegion(x, y, tileSize, tileSize).data();
+        for (int row = 0; row < tileSize; row++) {
+          System.arraycopy(tile, row * tileSize, strip.data(), row * minWidth + x, tileSize);
+        }
+      }
+      out.writeRows(y, strip);
+    }
+    return out;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
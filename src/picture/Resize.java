@@ -0,0 +1,146 @@
+package picture;
+
+/**
+ * Resamples packed 0xRRGGBB pixel arrays to new dimensions with a {@link ResizeFilter}. The
+ * filter is separable, so a resize is a horizontal pass into an intermediate picture as wide as
+ * the output and as tall as the input, then a vertical pass. Each pass precomputes, for every
+ * output column or row, the first input pixel it reads and fixed point weights for it and the
+ * ones after, so the inner loops are integer multiply-adds.
+ */
+final class Resize {
+
+  /**
+   * The number of fractional bits in a fixed point weight.
+   */
+  private static final int PRECISION = 14;
+
+  private Resize() {
+  }
+
+  /**
+   * Resample src, which is srcWidth by srcHeight, into dst, which is width by height.
+   */
+  static void resize(int[] src, int srcWidth, int srcHeight, int[] dst, int width, int height,
+      ResizeFilter filter) {
+    Weights columns = new Weights(srcWidth, width, filter);
+    Weights rows = new Weights(srcHeight, height, filter);
+    int[] across = width == srcWidth ? src : new int[width * srcHeight];
+    if (across != src) {
+      RowBands.forEach(width, srcHeight, (fromRow, toRow) -> {
+        for (int y = fromRow; y < toRow; y++) {
+          resample(src, y * srcWidth, columns, across, y * width);
+        }
+      });
+    }
+    if (height == srcHeight) {
+      System.arraycopy(across, 0, dst, 0, dst.length);
+      return;
+    }
+    RowBands.forEach(width, height, (fromRow, toRow) -> {
+      // Rows of the output are resampled down each column of the intermediate
+      for (int y = fromRow; y < toRow; y++) {
+        int first = rows.first[y] * width;
+        int taps = rows.taps;
+        int weights = y * taps;
+        for (int x = 0; x < width; x++) {
+          int red = 0;
+          int green = 0;
+          int blue = 0;
+          for (int k = 0, i = first + x; k < taps; k++, i += width) {
+            int weight = rows.weights[weights + k];
+            int rgb = across[i];
+            red += weight * Picture.red(rgb);
+            green += weight * Picture.green(rgb);
+            blue += weight * Picture.blue(rgb);
+          }
+          dst[y * width + x] = pack(red, green, blue);
+        }
+      }
+    });
+  }
+
+  /**
+   * Resample the row of src from start into the row of dst from dstStart.
+   */
+  private static void resample(int[] src, int start, Weights weights, int[] dst, int dstStart) {
+    int taps = weights.taps;
+    for (int i = 0; i < weights.first.length; i++) {
+      int red = 0;
+      int green = 0;
+      int blue = 0;
+      int index = start + weights.first[i];
+      for (int k = 0, w = i * taps; k < taps; k++, w++, index++) {
+        int rgb = src[index];
+        int weight = weights.weights[w];
+        red += weight * Picture.red(rgb);
+        green += weight * Picture.green(rgb);
+        blue += weight * Picture.blue(rgb);
+      }
+      dst[dstStart + i] = pack(red, green, blue);
+    }
+  }
+
+  private static int pack(int red, int green, int blue) {
+    return Picture.pack(channel(red), channel(green), channel(blue));
+  }
+
+  /**
+   * Returns a fixed point channel rounded to an integer and clamped to 0 to 255, since negative
+   * lobes can overshoot.
+   */
+  private static int channel(int fixed) {
+    int value = (fixed + (1 << (PRECISION - 1))) >> PRECISION;
+    return value < 0 ? 0 : value > 255 ? 255 : value;
+  }
+
+  /**
+   * The input pixels and fixed point weights for every output pixel along one axis. Output i
+   * reads taps input pixels from first[i], with weights[i * taps] onwards, which sum to one.
+   */
+  private static final class Weights {
+
+    final int taps;
+    final int[] first;
+    final int[] weights;
+
+    Weights(int in, int out, ResizeFilter filter) {
+      double scale = (double) in / out;
+      // Shrinking widens the filter to cover every input pixel under an output pixel
+      double stretch = filter == ResizeFilter.NEAREST ? 1 : Math.max(scale, 1);
+      double support = filter.support() * stretch;
+      // Enough for every input pixel with a non-zero weight, wherever the centre falls
+      taps = Math.min(in, (int) Math.ceil(2 * support) + 2);
+      first = new int[out];
+      weights = new int[out * taps];
+      double[] exact = new double[taps];
+      for (int i = 0; i < out; i++) {
+        // The centre of output pixel i in input co-ordinates, exact when it is a whole number
+        double centre = (2.0 * i + 1) * in / (2.0 * out);
+        int from = Math.max(0, Math.min(in - taps, (int) Math.floor(centre - 0.5 - support)));
+        double total = 0;
+        for (int k = 0; k < taps; k++) {
+          if (filter == ResizeFilter.AREA) {
+            // How much of input pixel from + k the output pixel covers
+            double left = Math.max(from + k, centre - scale / 2);
+            double right = Math.min(from + k + 1, centre + scale / 2);
+            exact[k] = Math.max(0, right - left);
+          } else {
+            exact[k] = filter.weight((from + k + 0.5 - centre) / stretch);
+          }
+          total += exact[k];
+        }
+        // The running totals are rounded rather than each weight, so the fixed point weights
+        // sum to exactly one and no weight is more than one unit out, however many taps there are
+        double running = 0;
+        int rounded = 0;
+        for (int k = 0; k < taps; k++) {
+          running += exact[k];
+          int next = (int) Math.round(running / total * (1 << PRECISION));
+          weights[i * taps + k] = next - rounded;
+          rounded = next;
+        }
+        first[i] = from;
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package picture;
+
+/**
+ * How {@link Picture#resize(int, int, ResizeFilter)} computes each output pixel from the input
+ * pixels around the point it samples.
+ */
+public enum ResizeFilter {
+
+  /**
+   * The single nearest input pixel. The fastest, but blocky when enlarging and aliased when
+   * shrinking.
+   */
+  NEAREST(0.5) {
+    @Override
+    double weight(double x) {
+      // The input pixel that holds the sampled point
+      return x > -0.5 && x <= 0.5 ? 1 : 0;
+    }
+  },
+
+  /**
+   * A linear interpolation of the nearest input pixels.
+   */
+  BILINEAR(1) {
+    @Override
+    double weight(double x) {
+      x = Math.abs(x);
+      return x < 1 ? 1 - x : 0;
+    }
+  },
+
+  /**
+   * The average of the input pixels that the output pixel covers, weighted by how much of each
+   * it covers. The natural choice for shrinking.
+   */
+  AREA(0.5) {
+    @Override
+    double weight(double x) {
+      // Only used for the extent of the filter, since the weights are the exact coverage
+      return x >= -0.5 && x <= 0.5 ? 1 : 0;
+    }
+  },
+
+  /**
+   * A windowed sinc over three lobes either side. The sharpest, at the cost of a wider window and
+   * slight ringing at hard edges.
+   */
+  LANCZOS(3) {
+    @Override
+    double weight(double x) {
+      if (x == 0) {
+        return 1;
+      }
+      if (Math.abs(x) >= 3) {
+        return 0;
+      }
+      double px = Math.PI * x;
+      return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+    }
+  };
+
+  private final double support;
+
+  ResizeFilter(double support) {
+    this.support = support;
+  }
+
+  /**
+   * Returns how far either side of the sampled point, in input pixels at unit scale, the filter
+   * has non-zero weights.
+   */
+  double support() {
+    return support;
+  }
+
+  /**
+   * Returns the weight of an input pixel x away from the sampled point, at unit scale.
+   */
+  abstract double weight(double x);
+}
@@ -0,0 +1,181 @@
+package picture;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A content-addressed cache of encoded results. Each result is keyed by a hash of the bytes of
+ * its input file and the canonical spec of the {@link Pipeline} applied to it, so the same
+ * transform of the same image is computed once however the file is named. Results are held in
+ * memory up to a byte budget, evicting the least recently used, and optionally also written to a
+ * directory so that they outlive the process. The directory is never pruned.
+ */
+public class ResultCache {
+
+  private static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+  private final long maxBytes;
+  private final Path directory;
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Construct a cache that holds at most maxBytes of results in memory, and also keeps every
+   * result in directory unless it is null.
+   */
+  public ResultCache(long maxBytes, Path directory) throws IOException {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    this.directory = directory;
+    if (directory != null) {
+      Files.createDirectories(directory);
+    }
+  }
+
+  /**
+   * Returns the PNG bytes of pipeline applied to the image in input, computing and caching them
+   * if no earlier call has.
+   */
+  public byte[] apply(Path input, Pipeline pipeline) throws IOException {
+    byte[] source = Files.readAllBytes(input);
+    String key = hash(source) + hash(pipeline.toString().getBytes(StandardCharsets.UTF_8));
+    byte[] result = get(key);
+    if (result != null) {
+      return result;
+    }
+    misses.increment();
+    Picture output = pipeline.apply(PictureIO.read(source));
+    result = PictureIO.toBytes(output, PictureIO.getDefaultLevel());
+    put(key, result);
+    return result;
+  }
+
+  private byte[] get(String key) throws IOException {
+    synchronized (this) {
+      byte[] result = entries.get(key);
+      if (result != null) {
+        hits.increment();
+        return result;
+      }
+    }
+    if (directory != null) {
+      Path file = directory.resolve(key + ".png");
+      if (Files.exists(file)) {
+        byte[] result = Files.readAllBytes(file);
+        diskHits.increment();
+        remember(key, result);
+        return result;
+      }
+    }
+    return null;
+  }
+
+  private void put(String key, byte[] result) throws IOException {
+    remember(key, result);
+    if (directory != null) {
+      // Written whole under a temporary name, so readers never see part of a result
+      Path temporary = Files.createTempFile(directory, key, ".tmp");
+      Files.write(temporary, result);
+      Files.move(temporary, directory.resolve(key + ".png"),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  private synchronized void remember(String key, byte[] result) {
+    if (result.length > maxBytes) {
+      return;
+    }
+    byte[] previous = entries.put(key, result);
+    bytes += result.length - (previous == null ? 0 : previous.length);
+    // Iterates from the least recently used entry
+    Iterator<Map.Entry<String, byte[]>> oldest = entries.entrySet().iterator();
+    while (bytes > maxBytes) {
+      bytes -= oldest.next().getValue().length;
+      oldest.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * Returns a 128 bit hash of data as 32 hex digits. Two independent 64 bit lanes each take one
+   * multiply per eight bytes, and are mixed with the MurmurHash3 finalizer.
+   */
+  static String hash(byte[] data) {
+    long first = PRIME_1 ^ data.length;
+    long second = PRIME_2 + data.length;
+    int i = 0;
+    for (; i + Long.BYTES <= data.length; i += Long.BYTES) {
+      long word = (long) LONGS.get(data, i);
+      first = Long.rotateLeft(first ^ word * PRIME_2, 31) * PRIME_1;
+      second = Long.rotateLeft(second + word * PRIME_1, 27) * PRIME_2;
+    }
+    long tail = 0;
+    for (int shift = 0; i < data.length; i++, shift += 8) {
+      tail |= (data[i] & 0xffL) << shift;
+    }
+    first = mix(first ^ tail * PRIME_2);
+    second = mix(second + tail * PRIME_1 + first);
+    return String.format("%016x%016x", first, second);
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getDiskHits() {
+    return diskHits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public synchronized long getCachedBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns a one line summary of the lookups so far.
+   */
+  @Override
+  public String toString() {
+    return "cache hits=" + getHits()
+        + " diskHits=" + getDiskHits()
+        + " misses=" + getMisses()
+        + " evictions=" + getEvictions()
+        + " cachedKB=" + getCachedBytes() / 1024;
+  }
+}
@@ -0,0 +1,182 @@
+package picture;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs per-row work over a picture, either sequentially or split into bands of rows on a shared
+ * {@link ForkJoinPool}. Every band writes a disjoint set of output pixels, so the result is the
+ * same whichever way the rows are split.
+ */
+final class RowBands {
+
+  /**
+   * Work to be done on the rows <tt>fromRow</tt> (inclusive) to <tt>toRow</tt> (exclusive).
+   */
+  interface Body {
+    void run(int fromRow, int toRow);
+  }
+
+  /**
+   * Number of bands queued per worker thread, so that uneven bands still keep every core busy.
+   */
+  private static final int BANDS_PER_THREAD = 4;
+
+  private static final int DEFAULT_THRESHOLD = 1 << 18;
+
+  /**
+   * The pool used for parallel work, or null if every operation runs sequentially.
+   */
+  private static ForkJoinPool pool;
+
+  /**
+   * The number of operations running on each pool, including pools that have been replaced but
+   * still have operations running. A replaced pool is shut down once its last operation ends.
+   */
+  private static final Map<ForkJoinPool, Integer> RUNNING = new IdentityHashMap<>();
+
+  private static int parallelism = 1;
+
+  private static int threshold = DEFAULT_THRESHOLD;
+
+  /**
+   * Tells work started by {@link #cancellable} on this thread that it should stop, or null if it
+   * runs to the end.
+   */
+  private static final ThreadLocal<BooleanSupplier> CANCELLED = new ThreadLocal<>();
+
+  private RowBands() {
+  }
+
+  static synchronized void setParallelism(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1: " + threads);
+    }
+    ForkJoinPool previous = pool;
+    pool = threads == 1 ? null : new ForkJoinPool(threads);
+    if (previous != null && !RUNNING.containsKey(previous)) {
+      previous.shutdown();
+    }
+    parallelism = threads;
+  }
+
+  static synchronized int getParallelism() {
+    return parallelism;
+  }
+
+  static synchronized void setThreshold(int pixels) {
+    if (pixels < 0) {
+      throw new IllegalArgumentException("Threshold must not be negative: " + pixels);
+    }
+    threshold = pixels;
+  }
+
+  static synchronized int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Returns the result of work, which stops with a {@link CancellationException} at the next
+   * band boundary of any operation it runs once cancelled returns true. Sequential operations
+   * are then split into bands too, so that they have boundaries to stop at.
+   */
+  static <T> T cancellable(BooleanSupplier cancelled, Supplier<T> work) {
+    BooleanSupplier previous = CANCELLED.get();
+    CANCELLED.set(cancelled);
+    try {
+      return work.get();
+    } finally {
+      CANCELLED.set(previous);
+    }
+  }
+
+  /**
+   * Runs body over all rows in [0, height) of an image that is width pixels wide.
+   */
+  static void forEach(int width, int height, Body body) {
+    ForkJoinPool current;
+    int bandRows;
+    synchronized (RowBands.class) {
+      current = pool;
+      if (current == null || (long) width * height < threshold || height < 2) {
+        current = null;
+      }
+      bandRows = Math.max(1, height / (parallelism * BANDS_PER_THREAD));
+      if (current != null) {
+        RUNNING.merge(current, 1, Integer::sum);
+      }
+    }
+    BooleanSupplier cancelled = CANCELLED.get();
+    if (current == null && cancelled == null) {
+      body.run(0, height);
+    } else if (current == null) {
+      int rows = Math.max(1, height / BANDS_PER_THREAD);
+      for (int fromRow = 0; fromRow < height; fromRow += rows) {
+        checkCancelled(cancelled);
+        body.run(fromRow, Math.min(height, fromRow + rows));
+      }
+    } else {
+      try {
+        current.invoke(new Band(body, 0, height, bandRows, cancelled));
+      } finally {
+        finished(current);
+      }
+    }
+  }
+
+  /**
+   * Record that an operation on current has ended, shutting current down if it has been replaced
+   * and nothing else is running on it.
+   */
+  private static synchronized void finished(ForkJoinPool current) {
+    Integer running = RUNNING.merge(current, -1, Integer::sum);
+    if (running == 0) {
+      RUNNING.remove(current);
+      if (current != pool) {
+        current.shutdown();
+      }
+    }
+  }
+
+  private static void checkCancelled(BooleanSupplier cancelled) {
+    if (cancelled != null && cancelled.getAsBoolean()) {
+      throw new CancellationException("Cancelled at a band boundary");
+    }
+  }
+
+  private static final class Band extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Body body;
+    private final int fromRow;
+    private final int toRow;
+    private final int bandRows;
+    private final BooleanSupplier cancelled;
+
+    Band(Body body, int fromRow, int toRow, int bandRows, BooleanSupplier cancelled) {
+      this.body = body;
+      this.fromRow = fromRow;
+      this.toRow = toRow;
+      this.bandRows = bandRows;
+      this.cancelled = cancelled;
+    }
+
+    @Override
+    protected void compute() {
+      if (toRow - fromRow <= bandRows) {
+        checkCancelled(cancelled);
+        body.run(fromRow, toRow);
+        return;
+      }
+      int middle = (fromRow + toRow) >>> 1;
+      invokeAll(new Band(body, fromRow, middle, bandRows, cancelled),
+          new Band(body, middle, toRow, bandRows, cancelled));
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package picture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blends a numbered sequence of frames, such as <tt>frame_00001.png</tt> onwards, over a sliding
+ * window and applies a {@link Pipeline} to each blend. Output i is the average of frames i to i +
+ * window - 1, and is written under the name of the last of them, so a window of 1 just applies
+ * the pipeline to every frame.
+ *
+ * <p>Every frame is decoded once, ahead of use on a pool of decode threads. The frames in the
+ * window are kept in a ring, and the blend moves on by adding the newest frame to the channel
+ * totals of a {@link BlendAccumulator} and removing the oldest, so each step costs the same
+ * whatever the window. The pipeline and encode of each output run on a pool of their own, with a
+ * bounded number of outputs in flight. A frame that cannot be decoded ends the sequence, since
+ * every later window would need it, but an output that cannot be written does not.
+ */
+public class SequenceProcessor {
+
+  /**
+   * The threads decoding frames by default. One more frame than this is decoded ahead.
+   */
+  static final int DEFAULT_DECODE_THREADS = 2;
+
+  private final int window;
+  private final Pipeline pipeline;
+  private final int decodeThreads;
+  private final int encodeThreads;
+  private final int maxInFlight;
+
+  /**
+   * Construct a sequence processor.
+   *
+   * @param window        the number of consecutive frames averaged into each output.
+   * @param pipeline      the operations applied to every blended output.
+   * @param decodeThreads the number of threads decoding frames ahead of the blend.
+   * @param encodeThreads the number of threads applying the pipeline and encoding outputs.
+   * @param maxInFlight   the most outputs that are blended but not yet written at any time.
+   * @throws IllegalArgumentException if any count is less than 1.
+   */
+  public SequenceProcessor(int window, Pipeline pipeline, int decodeThreads, int encodeThreads,
+      int maxInFlight) {
+    if (window < 1 || decodeThreads < 1 || encodeThreads < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException(
+          "Window, thread counts and maxInFlight must be at least 1");
+    }
+    this.window = window;
+    this.pipeline = pipeline;
+    this.decodeThreads = decodeThreads;
+    this.encodeThreads = encodeThreads;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Construct a sequence processor that decodes on two threads and encodes on every core.
+   */
+  public SequenceProcessor(int window, Pipeline pipeline) {
+    this(window, pipeline, BatchProcessor.DEFAULT_IN_FLIGHT);
+  }
+
+  /**
+   * Construct a sequence processor like {@link #SequenceProcessor(int, Pipeline)}, but with at
+   * most maxInFlight outputs in flight.
+   */
+  public SequenceProcessor(int window, Pipeline pipeline, int maxInFlight) {
+    this(window, pipeline, DEFAULT_DECODE_THREADS, Runtime.getRuntime().availableProcessors(),
+        maxInFlight);
+  }
+
+  /**
+   * Blend frames, which must all have the dimensions of the first, writing each output under the
+   * file name of the last frame of its window in outputDirectory. Blocks until every output has
+   * either been written or failed.
+   *
+   * @param frames          the frames in order, as returned by {@link BatchProcessor#expand}.
+   * @param outputDirectory the directory the outputs are written to, created if needed.
+   * @return a summary of the outputs, including every failure.
+   */
+  public BatchProcessor.Result run(List<Path> frames, Path outputDirectory) {
+    try {
+      Files.createDirectories(outputDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    ExecutorService decoders = newPool(decodeThreads, decodeThreads + 1);
+    ExecutorService encoders = newPool(encodeThreads, maxInFlight);
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    List<BatchProcessor.Failure> failures = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger written = new AtomicInteger();
+    AtomicLong pixels = new AtomicLong();
+    long start = System.nanoTime();
+    try {
+      // Frames being decoded ahead of the blend, in order
+      ArrayDeque<Future<Picture>> decoding = new ArrayDeque<>();
+      int next = 0;
+      ArrayDeque<Picture> ring = new ArrayDeque<>(window);
+      BlendAccumulator accumulator = null;
+      for (int i = 0; i < frames.size(); i++) {
+        while (next < frames.size() && next < i + decodeThreads + 1) {
+          Path frame = frames.get(next++);
+          decoding.add(decoders.submit(() -> new Picture(frame.toString())));
+        }
+        Picture frame;
+        try {
+          frame = decoding.remove().get();
+          if (accumulator == null) {
+            accumulator = new BlendAccumulator(frame.getWidth(), frame.getHeight());
+          } else if (frame.getWidth() != accumulator.getWidth()
+              || frame.getHeight() != accumulator.getHeight()) {
+            throw new IllegalArgumentException("Frame is " + frame.getWidth() + "x"
+                + frame.getHeight() + " but the sequence is " + accumulator.getWidth() + "x"
+                + accumulator.getHeight());
+          }
+        } catch (ExecutionException | RuntimeException e) {
+          failures.add(new BatchProcessor.Failure(frames.get(i),
+              e instanceof ExecutionException ? e.getCause() : e));
+          // No later window can be blended
+          break;
+        }
+        if (ring.size() == window) {
+          accumulator.remove(ring.remove(), 1);
+        }
+        ring.add(frame);
+        accumulator.add(frame, 1);
+        pixels.addAndGet((long) frame.getWidth() * frame.getHeight());
+        if (ring.size() < window) {
+          continue;
+        }
+        // Blocks here once maxInFlight outputs are waiting to be written
+        inFlight.acquireUninterruptibly();
+        Picture blend = accumulator.result();
+        Path output = outputDirectory.resolve(frames.get(i).getFileName());
+        encoders.execute(() -> {
+          try {
+            pipeline.apply(blend).saveAs(output.toString());
+            written.incrementAndGet();
+          } catch (RuntimeException | Error e) {
+            failures.add(new BatchProcessor.Failure(output, e));
+          } finally {
+            inFlight.release();
+          }
+        });
+      }
+      // Every permit is back once the last output is written
+      inFlight.acquire(maxInFlight);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      decoders.shutdownNow();
+      encoders.shutdownNow();
+    }
+    long elapsed = System.nanoTime() - start;
+    List<BatchProcessor.Failure> failed = List.copyOf(failures);
+    return new BatchProcessor.Result(written.get(), failed, pixels.get(), elapsed);
+  }
+
+  /**
+   * A fixed size pool whose queue can hold capacity tasks, so that execute never rejects.
+   */
+  private static ExecutorService newPool(int threads, int capacity) {
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, capacity)));
+  }
+}
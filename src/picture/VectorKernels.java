@@ -0,0 +1,140 @@
+package picture;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the {@link PointKernels}, using the incubating Vector API. Each vector holds
+ * several packed pixels. Channels are unpacked into lanes with shifts and masks, combined, and
+ * repacked. The results are bit-identical to the scalar kernels, including integer division
+ * rounding down. Remainders shorter than a vector fall back to the scalar loops.
+ */
+final class VectorKernels extends PointKernels {
+
+  private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+  /**
+   * Largest divisor for which every channel total is below 2^24 and so exact as a float.
+   */
+  private static final int MAX_FLOAT_DIVISOR = (1 << 24) / 255;
+
+  /**
+   * floor(s / 3) == (s * 21846) >>> 16 for every sum s of three channels, 0 to 765.
+   */
+  private static final int THIRD_MULTIPLIER = 21846;
+
+  @Override
+  String name() {
+    return "vector-" + INTS.vectorBitSize();
+  }
+
+  @Override
+  void invert(int[] src, int[] dst, int from, int to) {
+    int end = from + INTS.loopBound(to - from);
+    int i = from;
+    for (; i < end; i += INTS.length()) {
+      IntVector.fromArray(INTS, src, i)
+          .lanewise(VectorOperators.XOR, 0xffffff)
+          .intoArray(dst, i);
+    }
+    super.invert(src, dst, i, to);
+  }
+
+  @Override
+  void grayscale(int[] src, int[] dst, int from, int to) {
+    int end = from + INTS.loopBound(to - from);
+    int i = from;
+    for (; i < end; i += INTS.length()) {
+      IntVector rgb = IntVector.fromArray(INTS, src, i);
+      IntVector sum = red(rgb).add(green(rgb)).add(blue(rgb));
+      IntVector avg = sum.mul(THIRD_MULTIPLIER).lanewise(VectorOperators.LSHR, 16);
+      // avg * 0x010101 copies avg into all three channels
+      avg.mul(0x010101).intoArray(dst, i);
+    }
+    super.grayscale(src, dst, i, to);
+  }
+
+  @Override
+  void accumulate(int[] src, int offset, int[] red, int[] green, int[] blue, int length) {
+    int end = INTS.loopBound(length);
+    int x = 0;
+    for (; x < end; x += INTS.length()) {
+      IntVector rgb = IntVector.fromArray(INTS, src, offset + x);
+      IntVector.fromArray(INTS, red, x).add(red(rgb)).intoArray(red, x);
+      IntVector.fromArray(INTS, green, x).add(green(rgb)).intoArray(green, x);
+      IntVector.fromArray(INTS, blue, x).add(blue(rgb)).intoArray(blue, x);
+    }
+    for (; x < length; x++) {
+      int rgb = src[offset + x];
+      red[x] += Picture.red(rgb);
+      green[x] += Picture.green(rgb);
+      blue[x] += Picture.blue(rgb);
+    }
+  }
+
+  @Override
+  void average(int[] red, int[] green, int[] blue, int divisor, int[] dst, int offset,
+      int length) {
+    if (divisor > MAX_FLOAT_DIVISOR) {
+      super.average(red, green, blue, divisor, dst, offset, length);
+      return;
+    }
+    int end = INTS.loopBound(length);
+    int x = 0;
+    for (; x < end; x += INTS.length()) {
+      IntVector r = divide(IntVector.fromArray(INTS, red, x), divisor);
+      IntVector g = divide(IntVector.fromArray(INTS, green, x), divisor);
+      IntVector b = divide(IntVector.fromArray(INTS, blue, x), divisor);
+      r.lanewise(VectorOperators.LSHL, 16)
+          .or(g.lanewise(VectorOperators.LSHL, 8))
+          .or(b)
+          .intoArray(dst, offset + x);
+    }
+    for (; x < length; x++) {
+      dst[offset + x] = Picture.pack(red[x] / divisor, green[x] / divisor, blue[x] / divisor);
+    }
+  }
+
+  @Override
+  int hash(int[] src) {
+    if (INTS.length() < HASH_LANES) {
+      return super.hash(src);
+    }
+    // One lane per accumulator, whatever the preferred vector size
+    VectorSpecies<Integer> species = IntVector.SPECIES_256;
+    IntVector lanes = IntVector.zero(species);
+    int end = src.length - src.length % HASH_LANES;
+    for (int i = 0; i < end; i += HASH_LANES) {
+      lanes = lanes.mul(31).add(IntVector.fromArray(species, src, i));
+    }
+    return combine(lanes.toArray(), src, end);
+  }
+
+  /**
+   * Returns floor(total / divisor) for non-negative totals below 2^24. The float quotient is
+   * within one of the exact one, so a single correction from the remainder makes it exact.
+   */
+  private static IntVector divide(IntVector total, int divisor) {
+    FloatVector quotient = (FloatVector) total.convert(VectorOperators.I2F, 0);
+    IntVector q = (IntVector) quotient
+        .lanewise(VectorOperators.DIV, (float) divisor)
+        .convert(VectorOperators.F2I, 0);
+    IntVector remainder = total.sub(q.mul(divisor));
+    return q.sub(1, remainder.compare(VectorOperators.LT, 0))
+        .add(1, remainder.compare(VectorOperators.GE, divisor));
+  }
+
+  private static IntVector red(IntVector rgb) {
+    return rgb.lanewise(VectorOperators.LSHR, 16).and(0xff);
+  }
+
+  private static IntVector green(IntVector rgb) {
+    return rgb.lanewise(VectorOperators.LSHR, 8).and(0xff);
+  }
+
+  private static IntVector blue(IntVector rgb) {
+    return rgb.and(0xff);
+  }
+}
@@ -1,6 +1,34 @@
 package picture;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import javax.imageio.ImageIO;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
@@ -11,6 +39,14 @@ public class PictureProcessorTest {
   @Rule
   public TemporaryFolder tmpFolder = new TemporaryFolder();
 
+  @After
+  public void resetGlobals() {
+    Picture.setParallelism(1);
+    Picture.setParallelThreshold(1 << 18);
+    PictureProcessor.setCache(null);
+    PictureProcessor.setGovernor(null);
+  }
+
   @Test
   public void invertBlack() throws IOException {
     Assert.assertEquals(
@@ -95,6 +131,707 @@ public class PictureProcessorTest {
         TestSuiteHelper.runMain(tmpFolder, "flip", "H", "images/blue64x32doc.png"));
   }
 
+  @Test
+  public void pipelineRotateFlipBlue() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/blueFH64x32doc.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "pipeline", "rotate:90,flip:H,rotate:90", "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void pipelineInvertGrayscaleRainbow() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbowGS64x64doc.png").invert(),
+        TestSuiteHelper.runMain(
+            tmpFolder, "pipeline", "invert,invert,grayscale,invert", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void batchFlipHGlob() throws IOException {
+    File outputDir = tmpFolder.newFolder("batch");
+    PictureProcessor.main(new String[] {
+        "batch", "flip:H", "images/{green64x64doc,blue64x32doc}.png", outputDir.getPath()});
+    Assert.assertEquals(
+        new Picture("images/green64x64FHdoc.png"),
+        new Picture(new File(outputDir, "green64x64doc.png").getPath()));
+    Assert.assertEquals(
+        new Picture("images/blueFH64x32doc.png"),
+        new Picture(new File(outputDir, "blue64x32doc.png").getPath()));
+  }
+
+  @Test
+  public void mainReportsUsageErrorsButNotFailures() {
+    String output = tmpFolder.getRoot().getPath() + "/flipped.png";
+    PrintStream err = System.err;
+    ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(captured, true));
+    try {
+      PictureProcessor.main(new String[] {"flip", "D", "images/blue64x32doc.png", output});
+    } finally {
+      System.setErr(err);
+    }
+    Assert.assertEquals("Format: flip [H/V] input output", captured.toString().strip());
+    try {
+      PictureProcessor.main(new String[] {"blur", "two", "images/blue64x32doc.png", output});
+      Assert.fail("A bad radius was reported as usage");
+    } catch (NumberFormatException e) {
+      Assert.assertFalse(new File(output).exists());
+    }
+  }
+
+  @Test
+  public void rotationsAcrossManyRaggedBlocks() {
+    Random random = new Random(90);
+    int[][] sizes = {{130, 70}, {129, 129}, {300, 257}, {1, 200}, {200, 1}};
+    for (int threads : new int[] {1, 4}) {
+      Picture.setParallelism(threads);
+      Picture.setParallelThreshold(0);
+      for (int[] size : sizes) {
+        int width = size[0];
+        int height = size[1];
+        Picture picture = new Picture(width, height);
+        int[] pixels = picture.data();
+        for (int i = 0; i < pixels.length; i++) {
+          pixels[i] = random.nextInt(1 << 24);
+        }
+        Picture clockwise = new Picture(height, width);
+        Picture anticlockwise = new Picture(height, width);
+        int[] right = clockwise.data();
+        int[] left = anticlockwise.data();
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            right[x * height + height - y - 1] = pixels[y * width + x];
+            left[(width - x - 1) * height + y] = pixels[y * width + x];
+          }
+        }
+        Assert.assertEquals(clockwise, picture.rotate90());
+        Assert.assertEquals(anticlockwise, picture.rotate270());
+      }
+    }
+  }
+
+  @Test
+  public void batchCountsWrittenAndFailedFiles() throws IOException {
+    File outputDir = tmpFolder.newFolder("counted");
+    BatchProcessor.Result result = new BatchProcessor(Pipeline.parse("invert")).run(
+        List.of(Paths.get("images/green64x64doc.png"), Paths.get("images/missing.png"),
+            Paths.get("images/blue64x32doc.png")), outputDir.toPath());
+    Assert.assertEquals(2, result.succeeded());
+    Assert.assertEquals(List.of(Paths.get("images/missing.png")),
+        result.failures().stream().map(BatchProcessor.Failure::input).toList());
+    Assert.assertEquals(64 * 64 + 64 * 32, result.pixels());
+  }
+
+  @Test
+  public void sequenceRollingBlend() throws IOException {
+    File frameDir = tmpFolder.newFolder("frames");
+    File outputDir = tmpFolder.newFolder("rolling");
+    String[] sources = {"black64x64.png", "rainbow64x64doc.png", "bwpatterns64x64.png",
+        "red64x64.png", "green64x64doc.png"};
+    List<Picture> frames = new ArrayList<>();
+    for (int i = 0; i < sources.length; i++) {
+      Picture frame = new Picture("images/" + sources[i]);
+      frame.saveAs(new File(frameDir, "frame_0000" + (i + 1) + ".png").getPath());
+      frames.add(frame);
+    }
+    PictureProcessor.main(new String[] {
+        "sequence", "3", "invert", frameDir.getPath() + "/frame_*.png", outputDir.getPath()});
+    Assert.assertFalse(new File(outputDir, "frame_00002.png").exists());
+    for (int last = 3; last <= sources.length; last++) {
+      Assert.assertEquals(
+          Picture.blend(frames.subList(last - 3, last)).invert(),
+          new Picture(new File(outputDir, "frame_0000" + last + ".png").getPath()));
+    }
+  }
+
+  @Test
+  public void serverInvertAndStreamedRotate() throws IOException {
+    try (PictureServer server = new PictureServer(new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), 0), 2, 4)) {
+      new Thread(() -> {
+        try {
+          server.serve();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).start();
+      String inverted = tmpFolder.getRoot().getPath() + "/inverted.png";
+      String rotated = tmpFolder.getRoot().getPath() + "/rotated.png";
+      try (PictureClient client = new PictureClient(server.getAddress())) {
+        Assert.assertEquals("OK", client.execute(
+            new String[] {"invert", "images/rainbow64x64doc.png", inverted}));
+        Assert.assertEquals("OK", client.executeStreaming(
+            new String[] {"rotate", "90", "images/blue64x32doc.png", rotated}));
+        Assert.assertTrue(client.execute(new String[] {"sharpen", "x", "y"})
+            .startsWith("ERROR"));
+        String skewed = tmpFolder.getRoot().getPath() + "/skewed.png";
+        Assert.assertTrue(client.executeStreaming(
+            new String[] {"rotate", "45", "images/blue64x32doc.png", skewed})
+            .endsWith("Rotations can only be a multiple of 90."));
+        Assert.assertFalse(new File(skewed).exists());
+        Assert.assertTrue(client.execute(
+            new String[] {"flip", "D", "images/blue64x32doc.png", skewed}).startsWith("ERROR"));
+      }
+      Assert.assertEquals(new Picture("images/rainbowI64x64doc.png"), new Picture(inverted));
+      Assert.assertEquals(new Picture("images/blueR9064x32doc.png"), new Picture(rotated));
+    }
+  }
+
+  @Test
+  public void serverStatsOfPictureAndOfRequests() throws IOException {
+    try (PictureServer server = new PictureServer(new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), 0), 2, 4)) {
+      new Thread(() -> {
+        try {
+          server.serve();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).start();
+      String statistics = tmpFolder.getRoot().getPath() + "/statistics.txt";
+      try (PictureClient client = new PictureClient(server.getAddress())) {
+        Assert.assertEquals("OK", client.executeStreaming(
+            new String[] {"stats", "images/rainbow64x64doc.png", statistics}));
+        Assert.assertTrue(client.execute(new String[] {"stats", "images/rainbow64x64doc.png"})
+            .startsWith("ERROR"));
+        Assert.assertTrue(client.execute(new String[] {"stats"}).startsWith("OK active="));
+      }
+      Assert.assertEquals(new Picture("images/rainbow64x64doc.png").statistics().toString(),
+          Files.readString(new File(statistics).toPath()).strip());
+
+      // Bad counts and lengths are answered with an error rather than allocated
+      Assert.assertEquals("ERROR Invalid argument count -1", sendRaw(server, -1));
+      Assert.assertEquals("ERROR Invalid argument count " + Integer.MAX_VALUE,
+          sendRaw(server, Integer.MAX_VALUE));
+      Assert.assertEquals("ERROR Invalid image length " + Integer.MAX_VALUE,
+          sendRaw(server, 3, "invert", "-", "-", Integer.MAX_VALUE));
+      try (PictureClient client = new PictureClient(server.getAddress())) {
+        Assert.assertTrue(client.execute(new String[] {"stats"}).contains(" failed=4 "));
+      }
+    }
+  }
+
+  /**
+   * Returns the status the server replies with to a request of the given ints and strings.
+   */
+  private static String sendRaw(PictureServer server, Object... request) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(server.getAddress());
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+      for (Object value : request) {
+        if (value instanceof Integer number) {
+          out.writeInt(number);
+        } else {
+          out.writeUTF((String) value);
+        }
+      }
+      out.flush();
+      return in.readUTF();
+    }
+  }
+
+  @Test
+  public void inPlaceFlipsAndRotate180() {
+    Picture green = new Picture("images/green64x64doc.png");
+    green.flipHorizontalInPlace();
+    Assert.assertEquals(new Picture("images/green64x64FHdoc.png"), green);
+
+    Picture blue = new Picture("images/blue64x32doc.png");
+    blue.rotate180InPlace();
+    Assert.assertEquals(new Picture("images/blueR18064x32doc.png"), blue);
+    blue.rotate180InPlace();
+    blue.flipVerticalInPlace();
+    Assert.assertEquals(new Picture("images/blueFV64x32doc.png"), blue);
+  }
+
+  @Test
+  public void pooledDestinationRotate90() {
+    PicturePool pool = new PicturePool(1 << 20);
+    Picture blue = new Picture("images/blue64x32doc.png");
+    Picture first = blue.rotate90(pool.acquire(32, 64));
+    pool.release(first);
+    Picture second = blue.rotate90(pool.acquire(32, 64));
+    Assert.assertSame(first, second);
+    Assert.assertEquals(new Picture("images/blueR9064x32doc.png"), second);
+  }
+
+  @Test
+  public void rawRotate90AndBlurInStrips() throws IOException {
+    String root = tmpFolder.getRoot().getPath();
+    PictureProcessor.main(new String[] {"raw", "import", "images/blue64x32doc.png",
+        root + "/blue.raw"});
+    try (RawPicture blue = RawPicture.open(new File(root, "blue.raw").toPath())) {
+      // Strips of five rows force the operations across many strip boundaries
+      blue.setStripPixels(5 * 64);
+      blue.rotate90(new File(root, "rotated.raw").toPath()).close();
+      blue.blur(new File(root, "blurred.raw").toPath(), 2, BorderMode.MIRROR).close();
+    }
+    PictureProcessor.main(new String[] {"raw", "export", root + "/rotated.raw",
+        root + "/rotated.png"});
+    Assert.assertEquals(new Picture("images/blueR9064x32doc.png"),
+        new Picture(root + "/rotated.png"));
+    try (RawPicture blurred = RawPicture.open(new File(root, "blurred.raw").toPath())) {
+      Assert.assertEquals(new Picture("images/blue64x32doc.png").blur(2, BorderMode.MIRROR),
+          blurred.readRows(0, blurred.getHeight()));
+    }
+
+    // A raw file shorter than its header says is refused when opened
+    Path truncated = new File(root, "truncated.raw").toPath();
+    byte[] raw = Files.readAllBytes(new File(root, "blue.raw").toPath());
+    Files.write(truncated, Arrays.copyOf(raw, raw.length - 4));
+    try {
+      RawPicture.open(truncated).close();
+      Assert.fail("Opened a truncated raw picture");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage().contains("wrong length"));
+    }
+    try {
+      PictureProcessor.run(new String[] {"raw", "flip", "D", root + "/blue.raw",
+          root + "/flipped.raw"});
+      Assert.fail("Flipped in direction D");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals("Format: raw flip [H/V] input output", e.getMessage());
+    }
+  }
+
+  @Test
+  public void rawMosaicAndRotate270InTiles() throws IOException {
+    String root = tmpFolder.getRoot().getPath();
+    List<String> pngs = List.of("images/rainbow64x64doc.png", "images/sunset64x32.png",
+        "images/bwpatterns64x64.png");
+    List<String> raws = new ArrayList<>();
+    List<Picture> pictures = new ArrayList<>();
+    for (int i = 0; i < pngs.size(); i++) {
+      raws.add(root + "/" + i + ".raw");
+      PictureProcessor.main(new String[] {"raw", "import", pngs.get(i), raws.get(i)});
+      pictures.add(new Picture(pngs.get(i)));
+    }
+    List<String> mosaic = new ArrayList<>(List.of("raw", "mosaic", "8"));
+    mosaic.addAll(raws);
+    mosaic.add(root + "/mosaic.raw");
+    PictureProcessor.main(mosaic.toArray(new String[0]));
+    try (RawPicture tiled = RawPicture.open(Paths.get(root, "mosaic.raw"))) {
+      Assert.assertEquals(Picture.mosaic(pictures, 8), tiled.readRows(0, tiled.getHeight()));
+    }
+
+    try (RawPicture sunset = RawPicture.open(Paths.get(raws.get(1)))) {
+      // Tiles of 17 pixels square leave ragged tiles along both edges
+      sunset.setStripPixels(17 * 17);
+      try (RawPicture rotated = sunset.rotate270(Paths.get(root, "rotated.raw"))) {
+        Assert.assertEquals(pictures.get(1).rotate270(), rotated.readRows(0, rotated.getHeight()));
+      }
+    }
+  }
+
+  @Test
+  public void metricsRecordInvertAndPercentiles() {
+    OperationStats invert = Metrics.operation("invert");
+    long before = invert.getCount();
+    new Picture("images/blue64x32doc.png").invert();
+    Assert.assertEquals(before + 1, invert.getCount());
+    Assert.assertEquals(64, invert.getLastWidth());
+    Assert.assertEquals(32, invert.getLastHeight());
+    OperationStats scratch = Metrics.operation("scratch");
+    scratch.start().stop(3, 2);
+    scratch.reset();
+    Assert.assertEquals(0, scratch.getCount());
+    Assert.assertEquals(0, scratch.getLastWidth());
+    Assert.assertEquals(0, scratch.getLastHeight());
+
+    // Commands record the dimensions of their input, even when they fail
+    OperationStats rotate = Metrics.operation("command rotate");
+    long rotations = rotate.getCount();
+    try {
+      PictureProcessor.run(new String[] {"rotate", "45", "images/blue64x32doc.png",
+          tmpFolder.getRoot().getPath() + "/rotated.png"});
+      Assert.fail("Rotated by 45 degrees");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(rotations + 1, rotate.getCount());
+      Assert.assertEquals(64, rotate.getLastWidth());
+      Assert.assertEquals(32, rotate.getLastHeight());
+    }
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 1000; value++) {
+      histogram.record(value * 1000L);
+    }
+    // Within the 1/32 bucket precision of the exact percentiles
+    Assert.assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 / 32);
+    Assert.assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 / 32);
+    Assert.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void cachedRotateHitsMemoryThenDisk() throws IOException {
+    File directory = tmpFolder.newFolder("cache");
+    String rotated = tmpFolder.getRoot().getPath() + "/rotated.png";
+    ResultCache cache = new ResultCache(1 << 20, directory.toPath());
+    PictureProcessor.setCache(cache);
+    PictureProcessor.main(new String[] {"rotate", "90", "images/blue64x32doc.png", rotated});
+    Assert.assertEquals(new Picture("images/blueR9064x32doc.png"), new Picture(rotated));
+    // The same operation chain spelled as a pipeline has the same key
+    PictureProcessor.main(new String[] {"pipeline", "rotate:90", "images/blue64x32doc.png",
+        rotated});
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(1, cache.getHits());
+
+    ResultCache diskOnly = new ResultCache(0, directory.toPath());
+    PictureProcessor.setCache(diskOnly);
+    PictureProcessor.main(new String[] {"rotate", "90", "images/blue64x32doc.png", rotated});
+    Assert.assertEquals(1, diskOnly.getDiskHits());
+    Assert.assertEquals(new Picture("images/blueR9064x32doc.png"), new Picture(rotated));
+  }
+
+  @Test
+  public void diffAndHashFollowSetPixel() {
+    Picture rainbow = new Picture("images/rainbow64x64doc.png");
+    Picture copy = new Picture("images/rainbow64x64doc.png");
+    Assert.assertTrue(rainbow.diff(copy).identical());
+    int hash = copy.hashCode();
+    Assert.assertEquals(rainbow.hashCode(), hash);
+
+    copy.setPixel(40, 3, new Color(1, 2, 3));
+    copy.setPixel(7, 50, new Color(4, 5, 6));
+    Assert.assertNotEquals(hash, copy.hashCode());
+    Assert.assertNotEquals(rainbow, copy);
+    PictureDiff diff = rainbow.diff(copy);
+    Assert.assertEquals(2, diff.mismatches());
+    Assert.assertEquals(40, diff.firstX());
+    Assert.assertEquals(3, diff.firstY());
+    Assert.assertEquals(new Rectangle(7, 3, 34, 48), diff.bounds());
+  }
+
+  @Test
+  public void progressiveRenderFillsViewportFirst() {
+    Picture rainbow = new Picture("images/rainbow64x64doc.png");
+    Pipeline pipeline = Pipeline.parse("gaussian:2.0:mirror,rotate:90,invert");
+    Picture expected = pipeline.apply(rainbow);
+    Rectangle viewport = new Rectangle(10, 20, 16, 8);
+    Picture visible = new Pipeline().apply(expected, viewport);
+    Assert.assertEquals(visible, pipeline.apply(rainbow, viewport));
+
+    // Nothing runs until the queued tiles are, so the viewport is all that is done
+    List<Runnable> queued = new ArrayList<>();
+    List<Rectangle> done = new ArrayList<>();
+    ProgressiveRenderer renderer = new ProgressiveRenderer(queued::add, 16);
+    ProgressiveRenderer.Rendering rendering = renderer.render(rainbow, pipeline, viewport,
+        new ProgressiveRenderer.Listener() {
+          @Override
+          public void tileDone(Rectangle tile) {
+            done.add(tile);
+          }
+        });
+    Assert.assertEquals(16, queued.size());
+    Assert.assertEquals(visible, new Pipeline().apply(rendering.getOutput(), viewport));
+    Assert.assertNotEquals(expected, rendering.getOutput());
+    queued.forEach(Runnable::run);
+    Assert.assertEquals(16, done.size());
+    Assert.assertEquals(expected, rendering.join());
+
+    queued.clear();
+    rendering = renderer.render(rainbow, pipeline, viewport, new ProgressiveRenderer.Listener() {
+      @Override
+      public void completed(Picture output) {
+        Assert.fail("Cancelled rendering completed");
+      }
+    });
+    Assert.assertTrue(rendering.cancel());
+    queued.forEach(Runnable::run);
+    Assert.assertTrue(rendering.isCancelled());
+  }
+
+  @Test
+  public void packedAccessorsMatchColors() {
+    Picture rainbow = new Picture("images/rainbow64x64doc.png");
+    Color colour = rainbow.getPixel(12, 34);
+    int rgb = rainbow.getRGB(12, 34);
+    Assert.assertEquals(colour.getRed(), rainbow.getRed(12, 34));
+    Assert.assertEquals(colour.getGreen(), rainbow.getGreen(12, 34));
+    Assert.assertEquals(colour.getBlue(), rainbow.getBlue(12, 34));
+    Assert.assertEquals(rgb, rainbow.getRowBuffer(34).get(12));
+    Assert.assertEquals(rgb, rainbow.getRow(34, new int[65], 1)[13]);
+
+    Picture copy = new Picture(64, 64);
+    int[] row = new int[64];
+    for (int y = 0; y < 64; y++) {
+      copy.setRow(y, rainbow.getRow(y, row, 0), 0);
+    }
+    Assert.assertEquals(rainbow, copy);
+    copy.setRGB(5, 6, 0xff123456);
+    Assert.assertEquals(0x123456, copy.getRGB(5, 6));
+    copy.setRGB(5, 6, 1, 2, 3);
+    Assert.assertEquals(new Color(1, 2, 3).getGreen(), copy.getGreen(5, 6));
+  }
+
+  @Test
+  public void statisticsAndLevelsOfSunset() throws IOException {
+    Picture sunset = new Picture("images/sunset64x32.png");
+    PictureStatistics statistics = sunset.statistics();
+    long[] red = new long[256];
+    long redTotal = 0;
+    for (int y = 0; y < sunset.getHeight(); y++) {
+      for (int x = 0; x < sunset.getWidth(); x++) {
+        red[sunset.getRed(x, y)]++;
+        redTotal += sunset.getRed(x, y);
+      }
+    }
+    Assert.assertArrayEquals(red, statistics.getHistogram(PictureStatistics.Channel.RED));
+    Assert.assertEquals(redTotal / 2048.0,
+        statistics.getMean(PictureStatistics.Channel.RED), 1e-9);
+
+    Picture levelled = sunset.autoLevels();
+    Assert.assertEquals(levelled, TestSuiteHelper.runMain(tmpFolder, "autolevels",
+        "images/sunset64x32.png"));
+    Picture equalized = sunset.equalize();
+    for (PictureStatistics.Channel channel : PictureStatistics.Channel.values()) {
+      Assert.assertEquals(0, levelled.statistics().getMin(channel));
+      Assert.assertEquals(255, levelled.statistics().getMax(channel));
+      Assert.assertEquals(255, equalized.statistics().getMax(channel));
+    }
+
+    Picture.setParallelism(4);
+    Picture.setParallelThreshold(0);
+    Assert.assertEquals(statistics.toString(), sunset.statistics().toString());
+    Assert.assertEquals(equalized, sunset.equalize());
+  }
+
+  @Test
+  public void convolveFastPathsMatchDirect() throws IOException {
+    Picture sunset = new Picture("images/sunset64x32.png");
+    File kernelFile = tmpFolder.newFile("gaussian.txt");
+    Files.write(kernelFile.toPath(), List.of("# 3x3 Gaussian", "divisor 16",
+        "1 2 1", "2 4 2", "1 2 1"));
+    Kernel gaussian = Kernel.read(kernelFile.toPath());
+    Assert.assertNotNull(gaussian.separate());
+    Assert.assertNull(Kernel.sharpen().separate());
+    Assert.assertTrue(Kernel.box(2).isBox());
+
+    for (Kernel kernel : List.of(gaussian, Kernel.box(2), Kernel.sharpen(), Kernel.emboss())) {
+      for (BorderMode border : BorderMode.values()) {
+        Picture direct = new Picture(64, 32);
+        Convolution.direct(sunset.data(), direct.data(), 64, 32, kernel, border);
+        Assert.assertEquals(direct, sunset.convolve(kernel, border));
+      }
+    }
+    Assert.assertEquals(sunset.convolve(gaussian, BorderMode.MIRROR), TestSuiteHelper.runMain(
+        tmpFolder, "convolve", kernelFile.getPath(), "mirror", "images/sunset64x32.png"));
+
+    Picture sequential = sunset.convolve(Kernel.named("box:1"), BorderMode.KEEP);
+    Picture.setParallelism(4);
+    Picture.setParallelThreshold(0);
+    Assert.assertEquals(sequential, sunset.convolve(Kernel.box(1), BorderMode.KEEP));
+  }
+
+  @Test
+  public void convolveLargestBoxWithoutOverflow() {
+    // White makes every window total as large as it can be, just below 2^32 at the limit
+    Picture white = new Picture(4, 4);
+    Arrays.fill(white.data(), 0xffffff);
+    Assert.assertEquals(white, white.convolve(Kernel.box(Kernel.MAX_BOX_RADIUS), BorderMode.WRAP));
+    try {
+      Kernel.named("box:" + (Kernel.MAX_BOX_RADIUS + 1));
+      Assert.fail("Made a box whose totals overflow");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Radius must be between"));
+    }
+  }
+
+  @Test
+  public void resizeToSeveralSizes() throws IOException {
+    Picture rainbow = new Picture("images/rainbow64x64doc.png");
+    Picture nearest = rainbow.resize(32, 16, ResizeFilter.NEAREST);
+    Assert.assertEquals(rainbow.getRGB(21, 46), nearest.getRGB(10, 11));
+    for (ResizeFilter filter : ResizeFilter.values()) {
+      Assert.assertEquals(rainbow, rainbow.resize(64, 64, filter));
+    }
+    // Shrinking 7000 pixels to one spreads the rounding of thousands of tiny weights evenly
+    Picture ramps = new Picture(7000, 1);
+    int[] ramp = ramps.data();
+    long total = 0;
+    for (int x = 0; x < ramp.length; x++) {
+      ramp[x] = Picture.pack(x % 256, x % 256, x % 256);
+      total += x % 256;
+    }
+    int mean = Picture.red(ramps.resize(1, 1, ResizeFilter.AREA).data()[0]);
+    Assert.assertEquals(total / 7000.0, mean, 1);
+
+    String output = tmpFolder.getRoot().getPath() + "/thumb.png";
+    PictureProcessor.main(new String[] {
+        "resize", "40x40,16x8", "area", "images/rainbow64x64doc.png", output});
+    // 40x40 is resized from the picture itself, 16x8 from its 32x32 halving
+    Assert.assertEquals(rainbow.resize(40, 40, ResizeFilter.AREA),
+        new Picture(tmpFolder.getRoot().getPath() + "/thumb_40x40.png"));
+    Assert.assertEquals(rainbow.resize(32, 32, ResizeFilter.AREA).resize(16, 8, ResizeFilter.AREA),
+        new Picture(tmpFolder.getRoot().getPath() + "/thumb_16x8.png"));
+
+    // The size goes at the end of a name without an extension, not into its directory
+    File directory = tmpFolder.newFolder("sizes.d");
+    PictureProcessor.main(new String[] {
+        "resize", "40x40,16x8", "area", "images/rainbow64x64doc.png", directory + "/thumb"});
+    Assert.assertEquals(rainbow.resize(40, 40, ResizeFilter.AREA),
+        new Picture(new File(directory, "thumb_40x40").getPath()));
+  }
+
+  @Test
+  public void asyncLoadInvertSaveAndCancel() throws Exception {
+    String output = tmpFolder.getRoot().getPath() + "/async.png";
+    Pictures.loadAsync("images/rainbow64x64doc.png").thenInvert().saveAsync(output).join();
+    Assert.assertEquals(new Picture("images/rainbowI64x64doc.png"), new Picture(output));
+
+    // Cancelled before the invert reaches its first band of rows
+    AsyncPicture loaded = Pictures.of(new Picture("images/rainbow64x64doc.png"));
+    AsyncPicture inverted = loaded.then(picture -> {
+      loaded.cancel();
+      return picture.invert();
+    });
+    try {
+      inverted.toCompletableFuture().join();
+      Assert.fail("Cancelled chain completed");
+    } catch (CancellationException e) {
+      Assert.assertTrue(inverted.toCompletableFuture().isCancelled());
+    }
+
+    // With the only CPU thread busy and one task queued, the next is rejected
+    Pictures.setExecutors(1, 1, 1);
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      AsyncPicture busy = Pictures.of(new Picture(1, 1)).then(picture -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return picture;
+      });
+      AsyncPicture queued = Pictures.of(new Picture(1, 1)).thenInvert();
+      AsyncPicture rejected = Pictures.of(new Picture(1, 1)).thenInvert();
+      Assert.assertTrue(rejected.toCompletableFuture().isCompletedExceptionally());
+      release.countDown();
+      busy.toCompletableFuture().join();
+      queued.toCompletableFuture().join();
+    } finally {
+      Pictures.setExecutors(4, Runtime.getRuntime().availableProcessors(), 256);
+    }
+  }
+
+  @Test
+  public void memoryGovernorQueuesRejectsAndStrips() throws Exception {
+    String rainbow = "images/rainbow64x64doc.png";
+    Assert.assertEquals(3 * 4 * 64 * 64,
+        MemoryGovernor.estimate(new String[] {"invert", rainbow, "out.png"}));
+
+    MemoryGovernor governor = new MemoryGovernor(1000, 1);
+    MemoryGovernor.Admission first = governor.admit(600);
+    Thread waiter = new Thread(() -> {
+      try {
+        MemoryGovernor.Admission second = governor.admit(600);
+        Assert.assertEquals(600, second.getBytes());
+        second.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    waiter.start();
+    while (governor.getQueued() == 0) {
+      Thread.sleep(1);
+    }
+    try {
+      governor.admit(1);
+      Assert.fail("Admitted beyond the queue");
+    } catch (RejectedExecutionException e) {
+      Assert.assertEquals(1, governor.getRejected());
+    }
+    first.close();
+    waiter.join();
+    Assert.assertEquals(0, governor.getUsedBytes());
+    Assert.assertEquals(2, governor.getAdmitted());
+
+    // A blur needing more than the whole budget runs in strips of a few rows
+    PictureProcessor.setGovernor(new MemoryGovernor(20000, 4));
+    String output = tmpFolder.getRoot().getPath() + "/strips.png";
+    PictureProcessor.run(new String[] {"blur", "2", "mirror", rainbow, output});
+    Assert.assertEquals(new Picture(rainbow).blur(2, BorderMode.MIRROR), new Picture(output));
+    try {
+      PictureProcessor.run(new String[] {"resize", "128x128", rainbow, output});
+      Assert.fail("Resize ran beyond the budget");
+    } catch (RejectedExecutionException e) {
+      Assert.assertTrue(e.getMessage().startsWith("resize needs"));
+    }
+
+    // Raw commands run with strips as small as the budget needs
+    String raw = tmpFolder.getRoot().getPath() + "/rainbow.raw";
+    String inverted = tmpFolder.getRoot().getPath() + "/inverted.raw";
+    PictureProcessor.run(new String[] {"raw", "import", rainbow, raw});
+    PictureProcessor.run(new String[] {"raw", "invert", raw, inverted});
+    PictureProcessor.run(new String[] {"raw", "export", inverted, output});
+    Assert.assertEquals(new Picture("images/rainbowI64x64doc.png"), new Picture(output));
+
+    // A batch is estimated per file in flight, and runs one at a time when two do not fit
+    File outputDir = tmpFolder.newFolder("governed");
+    String[] batch = {"batch", "flip:H", "images/{green64x64doc,blue64x32doc}.png",
+        outputDir.getPath()};
+    Assert.assertEquals(2 * 3 * 4 * 64 * 64, MemoryGovernor.estimate(batch));
+    PictureProcessor.setGovernor(new MemoryGovernor(60000, 4));
+    PictureProcessor.run(batch);
+    Assert.assertEquals(new Picture("images/green64x64FHdoc.png"),
+        new Picture(new File(outputDir, "green64x64doc.png").getPath()));
+    PictureProcessor.setGovernor(new MemoryGovernor(20000, 4));
+    try {
+      PictureProcessor.run(batch);
+      Assert.fail("Batch ran beyond the budget");
+    } catch (RejectedExecutionException e) {
+      Assert.assertTrue(e.getMessage().startsWith("batch needs"));
+    }
+  }
+
+  @Test
+  public void pictureIoRoundTripsAtEveryLevel() throws IOException {
+    Picture.setParallelism(4);
+    Picture.setParallelThreshold(0);
+    Picture rainbow = PictureIO.read(new File("images/rainbow64x64doc.png").toPath());
+    for (int level = -1; level <= 9; level++) {
+      byte[] png = PictureIO.toBytes(rainbow, level);
+      Assert.assertEquals(new Picture("images/rainbow64x64doc.png"), PictureIO.read(png));
+    }
+  }
+
+  @Test
+  public void selectedKernelsMatchScalar() {
+    PointKernels selected = PointKernels.get();
+    PointKernels scalar = PointKernels.scalar();
+    // Every colour, with an odd length so that the scalar tail is used too
+    int[] colours = new int[(1 << 24) - 1];
+    for (int i = 0; i < colours.length; i++) {
+      colours[i] = i;
+    }
+    int[] expected = new int[colours.length];
+    int[] actual = new int[colours.length];
+    scalar.invert(colours, expected, 0, colours.length);
+    selected.invert(colours, actual, 0, colours.length);
+    Assert.assertArrayEquals(expected, actual);
+    scalar.grayscale(colours, expected, 0, colours.length);
+    selected.grayscale(colours, actual, 0, colours.length);
+    Assert.assertArrayEquals(expected, actual);
+    Assert.assertEquals(scalar.hash(colours), selected.hash(colours));
+
+    Random random = new Random(11);
+    int length = 1001;
+    for (int divisor : new int[] {1, 2, 3, 7, 64, 255, 1000, 70000}) {
+      int[][] totals = new int[3][length];
+      for (int[] channel : totals) {
+        for (int x = 0; x < length; x++) {
+          channel[x] = random.nextInt(255 * Math.min(divisor, 8000) + 1);
+        }
+      }
+      int[] expectedRow = new int[length];
+      int[] actualRow = new int[length];
+      scalar.average(totals[0], totals[1], totals[2], divisor, expectedRow, 0, length);
+      selected.average(totals[0], totals[1], totals[2], divisor, actualRow, 0, length);
+      Assert.assertArrayEquals(expectedRow, actualRow);
+    }
+  }
+
   @Test
   public void blurBWPatterns() throws IOException {
     Assert.assertEquals(
@@ -109,6 +846,46 @@ public class PictureProcessorTest {
         TestSuiteHelper.runMain(tmpFolder, "blur", "images/sunset64x32.png"));
   }
 
+  @Test
+  public void blurRadiusOneKeepSunset() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/sunsetBlur64x32.png"),
+        TestSuiteHelper.runMain(tmpFolder, "blur", "1", "keep", "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void gaussianMirrorSunset() throws IOException {
+    // Three box blurs averaging every pixel of each window directly, rounded to nearest
+    Picture sunset = new Picture("images/sunset64x32.png");
+    int width = sunset.getWidth();
+    int height = sunset.getHeight();
+    int[] expected = sunset.data().clone();
+    for (int radius : Blur.gaussianRadii(12.5)) {
+      int[] src = expected.clone();
+      int area = (2 * radius + 1) * (2 * radius + 1);
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          int red = 0;
+          int green = 0;
+          int blue = 0;
+          for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+              int rgb = src[BorderMode.MIRROR.remap(y + dy, height) * width
+                  + BorderMode.MIRROR.remap(x + dx, width)];
+              red += Picture.red(rgb);
+              green += Picture.green(rgb);
+              blue += Picture.blue(rgb);
+            }
+          }
+          expected[y * width + x] = Picture.pack((red + area / 2) / area,
+              (green + area / 2) / area, (blue + area / 2) / area);
+        }
+      }
+    }
+    Assert.assertArrayEquals(expected, TestSuiteHelper.runMain(
+        tmpFolder, "gaussian", "12.5", "mirror", "images/sunset64x32.png").data());
+  }
+
   @Test
   public void blendBWAndRainbow() throws IOException {
     Assert.assertEquals(
@@ -139,6 +916,17 @@ public class PictureProcessorTest {
             "images/red64x64.png"));
   }
 
+  @Test
+  public void weightedBlendRainbow() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbowpatternsblend64x64.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "blend", "--weights", "2,2,0",
+            "images/bwpatterns64x64.png",
+            "images/rainbow64x64doc.png",
+            "images/black64x64.png"));
+  }
+
   @Test
   public void docMosaic() throws IOException {
     Assert.assertEquals(
@@ -156,4 +944,102 @@ public class PictureProcessorTest {
             tmpFolder, "mosaic", "8",
             "images/black64x64.png", "images/white64x64.png"));
   }
+
+  @Test
+  public void mosaicInMemoryMatchesFiles() throws IOException {
+    // A grayscale PNG is not streamable, so its tiles come through ImageIO
+    BufferedImage gray = new BufferedImage(48, 40, BufferedImage.TYPE_BYTE_GRAY);
+    Random random = new Random(7);
+    for (int y = 0; y < gray.getHeight(); y++) {
+      for (int x = 0; x < gray.getWidth(); x++) {
+        gray.getRaster().setSample(x, y, 0, random.nextInt(256));
+      }
+    }
+    File grayFile = new File(tmpFolder.getRoot(), "gray.png");
+    ImageIO.write(gray, "png", grayFile);
+    List<String> files = List.of("images/rainbow64x64doc.png", grayFile.getPath(),
+        "images/sunset64x32.png");
+    List<Picture> pictures = new ArrayList<>();
+    for (String file : files) {
+      pictures.add(new Picture(file));
+    }
+    Assert.assertEquals(Picture.mosaic(pictures, 8), Picture.mosaicFiles(files, 8));
+
+    // A PNG cut off in its header fails rather than being retried as some other format
+    File truncated = new File(tmpFolder.getRoot(), "truncated.png");
+    Files.write(truncated.toPath(), Arrays.copyOf(
+        Files.readAllBytes(new File("images/rainbow64x64doc.png").toPath()), 31));
+    try {
+      Picture.mosaicFiles(List.of("images/rainbow64x64doc.png", truncated.getPath()), 8);
+      Assert.fail("Truncated PNG was decoded");
+    } catch (RuntimeException e) {
+      Assert.assertTrue(e.getCause() instanceof EOFException);
+    }
+    // Only inputs without the PNG signature are left to ImageIO, and the probe reads nothing
+    byte[] png = Files.readAllBytes(new File("images/rainbow64x64doc.png").toPath());
+    for (byte[] bytes : List.of(png, "GIF89a, not a PNG".getBytes())) {
+      InputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes));
+      Assert.assertEquals(bytes == png, PngCodec.hasSignature(in));
+      Assert.assertArrayEquals(bytes, in.readAllBytes());
+    }
+  }
+
+  @Test
+  public void parallelBlurSunset() throws IOException {
+    Picture.setParallelThreshold(0);
+    Assert.assertEquals(
+        new Picture("images/sunsetBlur64x32.png"),
+        TestSuiteHelper.runMain(tmpFolder, "--threads", "4", "blur", "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void blurRejectsRadiiWhoseTotalsOverflow() {
+    // White is the largest total a window can reach
+    Picture white = new Picture("images/white64x64.png");
+    Assert.assertEquals(white, white.blur(Blur.MAX_RADIUS, BorderMode.WRAP));
+    Picture sunset = new Picture("images/sunset64x32.png");
+    try {
+      sunset.blur(Blur.MAX_RADIUS + 1, BorderMode.WRAP);
+      Assert.fail("Blurred with a radius whose totals overflow");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Radius must be between"));
+    }
+    // Gaussian passes also add half the window area to round, so the largest sigma has radius
+    // 1449 and the next one up is rejected
+    Picture small = new Picture(4, 4);
+    Arrays.fill(small.data(), 0xffffff);
+    Assert.assertEquals(small, small.gaussianBlur(1449.5, BorderMode.WRAP));
+    try {
+      small.gaussianBlur(1450, BorderMode.WRAP);
+      Assert.fail("Blurred with a sigma whose rounded totals overflow");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Sigma is too large"));
+    }
+    try {
+      sunset.gaussianBlur(5000, BorderMode.MIRROR);
+      Assert.fail("Blurred with a sigma whose totals overflow");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Sigma is too large"));
+    }
+  }
+
+  @Test
+  public void parallelRotate90BlueRect() throws IOException {
+    Picture.setParallelThreshold(0);
+    Assert.assertEquals(
+        new Picture("images/blueR9064x32doc.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "--threads", "4", "rotate", "90", "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void parallelRgbBlend() throws IOException {
+    Picture.setParallelThreshold(0);
+    Assert.assertEquals(
+        new Picture("images/rgbBlend.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "--threads", "4", "blend",
+            "images/green64x64doc.png", "images/blue64x32doc.png",
+            "images/red64x64.png"));
+  }
 }